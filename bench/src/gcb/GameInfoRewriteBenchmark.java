@@ -0,0 +1,226 @@
+package gcb;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//GAMEINFO from GHost++ -> WC3Interface.processBroadcast, for games that gcb has cached already, which is
+// what nearly every broadcast is: filter, gamename rewrite, game lookup, entry key rewrite and cache update
+//legacy reproduces the per-packet work of the previous readBroadcast (a new ByteBuffer, the gamename and
+// statstring decoded into Strings, configuration read for every packet, the rewritten packet copied into a
+// new array and again into the game) so that both can be compared in one run
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GameInfoRewriteBenchmark {
+	static final int BATCH = 64; //packets per invocation
+
+	@Param({"1", "16"})
+	int numGames; //GHost++ games that are broadcast in turn
+
+	@Param({"", "[GARENA] %g"})
+	String gamename; //gcb_broadcastfilter_gamename
+
+	@Param({"false", "true"})
+	boolean changing; //whether every broadcast has a different slot count, so the cached packet has to be replaced
+
+	WC3Interface wc3i;
+	InetAddress address;
+	byte[][] packets;
+	int next;
+
+	//legacy: game identity -> entry key, like the previous getGameExists
+	Map<String, Integer> legacyGames;
+	Map<String, byte[]> legacyCache;
+
+	@Setup
+	public void setup() throws IOException {
+		BaseConfiguration configuration = new BaseConfiguration();
+		configuration.setProperty("gcb_broadcastfilter", true);
+		configuration.setProperty("gcb_broadcastfilter_key", true);
+		configuration.setProperty("gcb_broadcastfilter_cache", true);
+		configuration.setProperty("gcb_broadcastfilter_gamename", gamename);
+		configuration.setProperty("gcb_tcp_host", "127.0.0.1:6112");
+		GCBConfig.configuration = configuration;
+		Main.logLevel = 0;
+
+		wc3i = new WC3Interface(new HashMap<Integer, GarenaInterface>());
+		address = InetAddress.getLoopbackAddress();
+		legacyGames = new HashMap<String, Integer>();
+		legacyCache = new HashMap<String, byte[]>();
+
+		//every game is broadcast once, so that the benchmark only sees games that are cached
+		Random random = new Random(3);
+		packets = new byte[numGames * (changing ? 8 : 1)][];
+
+		for(int i = 0; i < packets.length; i++) {
+			int game = i % numGames;
+			packets[i] = createGameInfo("gcb benchmark game #" + game, 1000 + game, 6112, 11 - (i / numGames));
+			wc3i.processBroadcast(packets[i], 0, packets[i].length, address);
+			legacy(packets[i], 0, packets[i].length, random);
+		}
+
+		next = 0;
+	}
+
+	//packets per second through processBroadcast
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(BATCH)
+	public void rewrite() throws IOException {
+		for(int i = 0; i < BATCH; i++) {
+			byte[] packet = packets[next];
+			next = (next + 1) % packets.length;
+			wc3i.processBroadcast(packet, 0, packet.length, address);
+		}
+	}
+
+	//packets per second through the previous rewrite stage
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(BATCH)
+	public int legacy() {
+		int total = 0;
+
+		for(int i = 0; i < BATCH; i++) {
+			byte[] packet = packets[next];
+			next = (next + 1) % packets.length;
+			total += legacy(packet, 0, packet.length, null);
+		}
+
+		return total;
+	}
+
+	private int legacy(byte[] data, int offset, int length, Random random) {
+		if(!GCBConfig.configuration.getBoolean("gcb_broadcastfilter", true)) {
+			return 0;
+		}
+
+		ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+
+		ByteBuffer newPacket = ByteBuffer.allocate(1024);
+		newPacket.order(ByteOrder.LITTLE_ENDIAN);
+
+		buf.get();
+		buf.get();
+		newPacket.put((byte) Constants.W3GS_HEADER_CONSTANT);
+		newPacket.put((byte) Constants.W3GS_GAMEINFO);
+		System.arraycopy(buf.array(), buf.position(), newPacket.array(), newPacket.position(), 18);
+		buf.position(buf.position() + 18);
+		newPacket.position(newPacket.position() + 18);
+
+		String name = GarenaEncrypt.getTerminatedString(buf);
+		String gamenameSkeleton = GCBConfig.configuration.getString("gcb_broadcastfilter_gamename");
+
+		if(gamenameSkeleton != null && !gamenameSkeleton.trim().isEmpty()) {
+			gamenameSkeleton = gamenameSkeleton.replace("%g", name);
+
+			if(gamenameSkeleton.length() >= 31) {
+				gamenameSkeleton = gamenameSkeleton.substring(0, 30);
+			}
+
+			newPacket.put(gamenameSkeleton.getBytes());
+		} else {
+			newPacket.put(name.getBytes());
+		}
+
+		newPacket.put((byte) 0);
+		newPacket.put(buf.get());
+		newPacket.put(GarenaEncrypt.getTerminatedArray(buf));
+		newPacket.put((byte) 0);
+
+		System.arraycopy(buf.array(), buf.position(), newPacket.array(), newPacket.position(), 12);
+		buf.position(buf.position() + 12);
+		newPacket.position(newPacket.position() + 12);
+		newPacket.putInt(buf.getInt());
+		newPacket.putInt(buf.getInt());
+		int port = GarenaEncrypt.unsignedShort(buf.getShort());
+		newPacket.putShort((short) port);
+
+		if(!wc3i.isValidPort(port) || !GCBConfig.configuration.getBoolean("gcb_broadcastfilter_key", true)) {
+			return 0;
+		}
+
+		GCBConfig.configuration.getBoolean("gcb_tcp_buffer", true);
+		buf.position(12);
+		buf.getInt();
+		int ghostEntryKey = buf.getInt();
+		String identity = name + "/" + port + "/" + ghostEntryKey;
+		Integer garenaEntryKey = legacyGames.get(identity);
+
+		if(garenaEntryKey == null) {
+			garenaEntryKey = random.nextInt();
+			legacyGames.put(identity, garenaEntryKey);
+		}
+
+		if(GCBConfig.configuration.getInt("gcb_broadcastfilter_war3version", 0) != 0) {
+			newPacket.putInt(8, GCBConfig.configuration.getInt("gcb_broadcastfilter_war3version", 0));
+		}
+
+		newPacket.putInt(16, garenaEntryKey);
+
+		byte[] rewritten = new byte[newPacket.position()];
+		System.arraycopy(newPacket.array(), 0, rewritten, 0, newPacket.position());
+
+		//the previous WC3GameIdentifier.update always copied the packet
+		byte[] cached = new byte[rewritten.length];
+		System.arraycopy(rewritten, 0, cached, 0, rewritten.length);
+		legacyCache.put(identity, cached);
+		return cached.length;
+	}
+
+	//W3GS_GAMEINFO like GHost++ broadcasts it
+	static byte[] createGameInfo(String name, int entryKey, int port, int slotsAvailable) {
+		byte[] nameBytes = name.getBytes();
+		byte[] statstring = new byte[60];
+
+		for(int i = 0; i < statstring.length; i++) {
+			statstring[i] = (byte) (1 + 2 * i);
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(20 + nameBytes.length + 1 + 1 + statstring.length + 1 + 22);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.put((byte) Constants.W3GS_HEADER_CONSTANT);
+		buf.put((byte) Constants.W3GS_GAMEINFO);
+		buf.putShort((short) buf.capacity());
+		buf.put(new byte[] {'P', 'X', '3', 'W'}); //product
+		buf.putInt(26); //war3version
+		buf.putInt(1); //host counter
+		buf.putInt(entryKey);
+		buf.put(nameBytes);
+		buf.put((byte) 0);
+		buf.put((byte) 0); //game password
+		buf.put(statstring);
+		buf.put((byte) 0);
+		buf.putInt(12); //slots total
+		buf.putInt(1); //game type
+		buf.putInt(1); //unknown
+		buf.putInt(slotsAvailable);
+		buf.putInt(0); //uptime
+		buf.putShort((short) port);
+		return buf.array();
+	}
+}
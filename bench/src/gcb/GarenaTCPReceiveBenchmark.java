@@ -0,0 +1,122 @@
+package gcb;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//remote Garena user -> GarenaTCPPool -> TCPWorker -> GarenaTCP.data -> local GHost++ socket
+//lost packets are sent again right after the rest of their batch, like the remote end would retransmit them,
+// so gcb has to store everything after the hole until the retransmission arrives
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GarenaTCPReceiveBenchmark {
+	static final int BATCH = 64; //packets per invocation of receive
+
+	@Param({"0", "1", "5", "10"})
+	int lossPercent;
+
+	@Param({"0", "8"})
+	int reorderDepth; //packets are shuffled within groups of this many; 0 for in-order delivery
+
+	@Param({"256"})
+	int segmentSize; //payload of each packet, one W3GS packet
+
+	TCPBenchConnection connection;
+	byte[] payload;
+	int[] pending; //sequence numbers still to send in the current batch
+	Random shuffle;
+	long expectedLocal; //bytes that the GHost++ stand-in should have read
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		TCPBenchEnvironment.init();
+		TCPBenchEnvironment.set("gcb_tcp_delayedack", 0);
+
+		connection = new TCPBenchConnection(lossPercent, 1);
+		connection.open();
+
+		payload = new byte[segmentSize];
+		TCPBenchConnection.fillW3GS(payload, segmentSize);
+		pending = new int[BATCH];
+		shuffle = new Random(2);
+		expectedLocal = 0;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		connection.close();
+	}
+
+	//packets per second delivered to GHost++
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(BATCH)
+	public void receive() {
+		deliver(BATCH);
+	}
+
+	//time from sending a packet (or, with reordering, a shuffled group) until GHost++ has read it
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void receiveLatency() {
+		deliver(Math.max(1, reorderDepth));
+	}
+
+	private void deliver(int count) {
+		int first = connection.nextSeq;
+
+		for(int i = 0; i < count; i++) {
+			pending[i] = first + i;
+		}
+
+		if(reorderDepth > 1) {
+			for(int group = 0; group < count; group += reorderDepth) {
+				int end = Math.min(count, group + reorderDepth);
+
+				for(int i = end - 1; i > group; i--) {
+					int j = group + shuffle.nextInt(i - group + 1);
+					int tmp = pending[i];
+					pending[i] = pending[j];
+					pending[j] = tmp;
+				}
+			}
+		}
+
+		int remaining = count;
+
+		while(remaining > 0) {
+			int lost = 0;
+
+			for(int i = 0; i < remaining; i++) {
+				if(!connection.sendData(pending[i], payload, segmentSize)) {
+					pending[lost++] = pending[i];
+				}
+			}
+
+			remaining = lost;
+		}
+
+		connection.nextSeq += count;
+		expectedLocal += (long) count * segmentSize;
+		connection.awaitLocal(expectedLocal);
+	}
+}
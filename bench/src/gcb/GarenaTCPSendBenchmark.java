@@ -0,0 +1,84 @@
+package gcb;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//local GHost++ socket -> GarenaTCP.handleLocalPacket -> remote Garena user, which acknowledges through the pool
+//lost packets are never acknowledged, so gcb has to retransmit them (fast retransmission or timeout)
+//a small window keeps handleLocalPacket waiting for acknowledgements most of the time
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GarenaTCPSendBenchmark {
+	static final int BATCH = 64; //W3GS packets per invocation of send
+
+	@Param({"0", "1", "5", "10"})
+	int lossPercent;
+
+	@Param({"128", "4"})
+	int window; //gcb_tcp_maxwindow
+
+	@Param({"256"})
+	int packetSize; //size of each W3GS packet from GHost++
+
+	TCPBenchConnection connection;
+	byte[] data;
+	long expectedRemote; //bytes that the remote end should have received
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		TCPBenchEnvironment.init();
+		TCPBenchEnvironment.set("gcb_tcp_maxwindow", window);
+		TCPBenchEnvironment.set("gcb_tcp_initialwindow", Math.min(4, window));
+		TCPBenchEnvironment.set("gcb_tcp_coalescedelay", 0);
+
+		connection = new TCPBenchConnection(lossPercent, 1);
+		connection.open();
+
+		data = new byte[BATCH * packetSize];
+		TCPBenchConnection.fillW3GS(data, packetSize);
+		expectedRemote = 0;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		connection.close();
+	}
+
+	//W3GS packets per second received by the remote end
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(BATCH)
+	public void send() throws IOException {
+		connection.writeLocal(data, data.length);
+		expectedRemote += data.length;
+		connection.awaitRemote(expectedRemote);
+	}
+
+	//time from GHost++ writing a packet until the remote end has received it
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void sendLatency() throws IOException {
+		connection.writeLocal(data, packetSize);
+		expectedRemote += packetSize;
+		connection.awaitRemote(expectedRemote);
+	}
+}
@@ -0,0 +1,241 @@
+package gcb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TCPBenchConnection {
+	//one GarenaTCP connection under benchmark, with both of its ends:
+	// the remote Garena user, which sends CONN packets through the pool and acknowledges our data,
+	// and the local GHost++ stand-in, a loopback socket that counts what it reads and can write W3GS packets
+	//loss is decided by a seeded random generator, so every run loses the same packets
+
+	static long WAIT_TIMEOUT = 30000; //milliseconds to wait for data before failing the benchmark
+
+	int conn_id;
+	int remote_id;
+	GarenaTCP tcp;
+
+	ServerSocket ghostServer;
+	Socket ghost;
+	OutputStream ghostOut;
+	Thread ghostReader;
+	AtomicLong localReceived; //bytes that the GHost++ stand-in has read
+
+	//remote end
+	int nextSeq; //sequence number of the next data packet we send to gcb
+	int lossPercent; //percentage of data packets that are lost, in either direction
+	Random random;
+
+	//data received from gcb, protected by this
+	BitSet received; //sequence numbers received from gcb
+	int remoteAck; //all packets from gcb before this were received
+	long remoteBytes; //bytes of distinct packets received from gcb
+	volatile int gcbAck; //highest cumulative acknowledgement from gcb, for data that we sent
+
+	public TCPBenchConnection(int lossPercent, long seed) {
+		this.lossPercent = lossPercent;
+		random = new Random(seed);
+		received = new BitSet();
+		localReceived = new AtomicLong();
+	}
+
+	//starts the GHost++ stand-in and the connection, and waits until gcb has connected to it
+	public void open() throws IOException {
+		TCPBenchEnvironment.init();
+
+		ghostServer = new ServerSocket(0, 1, TCPBenchEnvironment.loopback);
+		TCPBenchEnvironment.set("gcb_tcp_host", TCPBenchEnvironment.loopback.getHostAddress() + ":" + ghostServer.getLocalPort());
+
+		conn_id = TCPBenchEnvironment.allocateConnId();
+		remote_id = 100000 + conn_id;
+		TCPBenchEnvironment.connections.put(conn_id, this);
+
+		PacketBuffer buffer = PacketBuffer.get();
+		byte[] array = buffer.array;
+		array[0] = 0x0B;
+		putIntLittle(array, 4, remote_id);
+		putIntLittle(array, 8, conn_id);
+		putIntLittle(array, 16, ghostServer.getLocalPort());
+		buffer.length = 20;
+		TCPBenchEnvironment.deliver(buffer);
+
+		ghostServer.setSoTimeout((int) WAIT_TIMEOUT);
+		ghost = ghostServer.accept();
+		ghost.setTcpNoDelay(true);
+		ghostOut = ghost.getOutputStream();
+
+		final InputStream ghostIn = ghost.getInputStream();
+		ghostReader = new Thread("bench ghost " + conn_id) {
+			public void run() {
+				byte[] readBuffer = new byte[65536];
+
+				try {
+					int len;
+
+					while((len = ghostIn.read(readBuffer)) != -1) {
+						localReceived.addAndGet(len);
+					}
+				} catch(IOException ioe) {}
+			}
+		};
+		ghostReader.setDaemon(true);
+		ghostReader.start();
+
+		//the worker registers the connection after it connected to us
+		long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+
+		while(tcp == null) {
+			synchronized(TCPBenchEnvironment.pool.tcpConnections) {
+				tcp = TCPBenchEnvironment.pool.tcpConnections.get(conn_id);
+			}
+
+			checkDeadline(deadline, "connection");
+			Thread.yield();
+		}
+	}
+
+	public void close() {
+		//CONN FIN from the remote end
+		PacketBuffer buffer = PacketBuffer.get();
+		byte[] array = buffer.array;
+		array[0] = 0x0D;
+		array[1] = 0x01;
+		putIntLittle(array, 4, conn_id);
+		putIntLittle(array, 8, remote_id);
+		buffer.length = 20;
+		TCPBenchEnvironment.deliver(buffer);
+
+		TCPBenchEnvironment.connections.remove(conn_id);
+
+		try {
+			ghost.close();
+			ghostServer.close();
+		} catch(IOException ioe) {}
+	}
+
+	//remote end sends data packet seq; returns false if the packet was lost
+	public boolean sendData(int seq, byte[] payload, int length) {
+		if(lost()) {
+			return false;
+		}
+
+		PacketBuffer buffer = PacketBuffer.get();
+		byte[] array = buffer.array;
+		array[0] = 0x0D;
+		array[1] = 0x14;
+		putIntLittle(array, 4, conn_id);
+		putIntLittle(array, 8, remote_id);
+		putIntLittle(array, 12, seq);
+		putIntLittle(array, 16, 0);
+		System.arraycopy(payload, 0, array, 20, length);
+		buffer.length = 20 + length;
+		TCPBenchEnvironment.deliver(buffer);
+		return true;
+	}
+
+	//GHost++ stand-in writes data to gcb
+	public void writeLocal(byte[] data, int length) throws IOException {
+		ghostOut.write(data, 0, length);
+	}
+
+	//called by the fake interface when gcb sends data packet seq
+	void onData(int seq, int length) {
+		int ack;
+
+		synchronized(this) {
+			if(lost()) {
+				return;
+			}
+
+			if(!received.get(seq)) {
+				received.set(seq);
+				remoteBytes += length;
+			}
+
+			while(received.get(remoteAck)) {
+				remoteAck++;
+			}
+
+			ack = remoteAck;
+		}
+
+		PacketBuffer buffer = PacketBuffer.get();
+		byte[] array = buffer.array;
+		array[0] = 0x0D;
+		array[1] = 0x0E;
+		putIntLittle(array, 4, conn_id);
+		putIntLittle(array, 8, remote_id);
+		putIntLittle(array, 12, seq);
+		putIntLittle(array, 16, ack);
+		buffer.length = 20;
+		TCPBenchEnvironment.deliver(buffer);
+	}
+
+	//called by the fake interface when gcb acknowledges
+	void onAck(int ack) {
+		if(ack > gcbAck) {
+			gcbAck = ack;
+		}
+	}
+
+	private boolean lost() {
+		synchronized(random) {
+			return lossPercent > 0 && random.nextInt(100) < lossPercent;
+		}
+	}
+
+	//waits until the GHost++ stand-in has read bytes in total
+	public void awaitLocal(long bytes) {
+		long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+
+		while(localReceived.get() < bytes) {
+			checkDeadline(deadline, "local data");
+			Thread.yield();
+		}
+	}
+
+	//waits until the remote end has received bytes of distinct packets in total
+	public void awaitRemote(long bytes) {
+		long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+
+		while(true) {
+			synchronized(this) {
+				if(remoteBytes >= bytes) {
+					return;
+				}
+			}
+
+			checkDeadline(deadline, "remote data");
+			Thread.yield();
+		}
+	}
+
+	private void checkDeadline(long deadline, String what) {
+		if(System.currentTimeMillis() > deadline) {
+			throw new IllegalStateException("[TCPBenchConnection " + conn_id + "] Timed out waiting for " + what);
+		}
+	}
+
+	static void putIntLittle(byte[] array, int offset, int value) {
+		array[offset] = (byte) value;
+		array[offset + 1] = (byte) (value >> 8);
+		array[offset + 2] = (byte) (value >> 16);
+		array[offset + 3] = (byte) (value >> 24);
+	}
+
+	//fills data with W3GS packets of packetLength bytes each, as GHost++ or a Warcraft III client would send them
+	public static void fillW3GS(byte[] data, int packetLength) {
+		for(int offset = 0; offset + packetLength <= data.length; offset += packetLength) {
+			data[offset] = (byte) Constants.W3GS_HEADER_CONSTANT;
+			data[offset + 1] = 0x26; //W3GS_OUTGOING_ACTION
+			data[offset + 2] = (byte) packetLength;
+			data[offset + 3] = (byte) (packetLength >> 8);
+		}
+	}
+}
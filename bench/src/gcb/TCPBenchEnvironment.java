@@ -0,0 +1,99 @@
+package gcb;
+
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.configuration.BaseConfiguration;
+
+import gcb.plugin.PluginManager;
+
+public class TCPBenchEnvironment {
+	//in-process GarenaTCP stack for the benchmarks: a real GarenaTCPPool with its workers, fed through
+	// GarenaTCPPool.enqueue like the peer receive threads do, and a fake GarenaInterface that hands
+	// outgoing CONN packets to the remote end of the benchmark (TCPBenchConnection) instead of a socket
+	//the pool and its threads can't be stopped, so they are created once and shared by every benchmark in the JVM
+	//pool settings come from system properties (gcb.bench.eventloop, gcb.bench.workers, gcb.bench.loglevel);
+	// connection settings are set by each benchmark before it opens its connection
+
+	static GarenaTCPPool pool;
+	static BenchGarenaInterface garena;
+	static InetAddress loopback;
+	static int nextConnId = 1;
+
+	//connection ID -> remote end, for packets that gcb sends
+	static Map<Integer, TCPBenchConnection> connections = new ConcurrentHashMap<Integer, TCPBenchConnection>();
+
+	public static synchronized void init() {
+		if(pool != null) {
+			return;
+		}
+
+		BaseConfiguration configuration = new BaseConfiguration();
+		configuration.setProperty("gcb_tcp_eventloop", Boolean.getBoolean("gcb.bench.eventloop"));
+		configuration.setProperty("gcb_tcp_workers", Integer.getInteger("gcb.bench.workers", 0));
+		configuration.setProperty("gcb_tcp_enablestats", false);
+		configuration.setProperty("gcb_broadcastfilter_key", false);
+		//in event loop mode the pool resolves the GHost++ host once; each connection sets its own port
+		loopback = InetAddress.getLoopbackAddress();
+		configuration.setProperty("gcb_tcp_host", loopback.getHostAddress());
+		GCBConfig.configuration = configuration;
+
+		Main.logLevel = Integer.getInteger("gcb.bench.loglevel", 0);
+		Main.TIMER = new Timer(true);
+		Main.RANDOM = new Random(1);
+		VirtualThreads.init();
+
+		garena = new BenchGarenaInterface();
+		pool = new GarenaTCPPool();
+		pool.setDaemon(true);
+		pool.start();
+		garena.setGarenaTCPPool(pool);
+	}
+
+	//sets a configuration key for connections opened afterwards
+	public static void set(String key, Object value) {
+		GCBConfig.configuration.setProperty(key, value);
+	}
+
+	static synchronized int allocateConnId() {
+		return nextConnId++;
+	}
+
+	//passes a CONN packet from the remote end to gcb, like GarenaInterface.processPeerPacket
+	//the pool takes over the buffer
+	static void deliver(PacketBuffer buffer) {
+		pool.enqueue(garena, loopback, 1513, buffer);
+	}
+
+	static class BenchGarenaInterface extends GarenaInterface {
+		BenchGarenaInterface() {
+			super(new PluginManager(), 1);
+			user_id = 777;
+		}
+
+		public void sendTCPData(SocketAddress target, int conn_id, long last_time, int seq, int ack, byte[] data, int len, ByteBuffer lbuf) {
+			TCPBenchConnection connection = connections.get(conn_id);
+
+			if(connection != null) {
+				connection.onData(seq, len);
+			}
+		}
+
+		public void sendTCPAck(SocketAddress target, int conn_id, long last_time, int seq, int ack, ByteBuffer lbuf) {
+			TCPBenchConnection connection = connections.get(conn_id);
+
+			if(connection != null) {
+				connection.onAck(ack);
+			}
+		}
+
+		public void sendTCPFin(SocketAddress target, int conn_id, long last_time, ByteBuffer lbuf) {
+			//the benchmark ends the connection itself
+		}
+	}
+}
@@ -0,0 +1,365 @@
+package gcb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GarenaSimulator {
+	//end-to-end load test for gcb: runs Main against a fake Garena main server (SimLoginServer), a fake
+	// room server (SimRoomServer) and a fake GHost++ (SimGHost), all on the loopback interface, and lets
+	// simulated players (SimPlayer) join the room and the game through an impaired link (SimNetwork)
+	//settings are given as key=value arguments; gcb_* and garena* keys go into gcb's configuration
+	//simulator threads are named "sim ...", so every other thread's CPU time is counted as gcb's
+
+	static final int GCB_USER_ID = 1;
+	static final int FIRST_PLAYER_ID = 1000;
+	static final int CPU_SAMPLE_INTERVAL = 100; //milliseconds; a thread that ends loses at most its CPU time since the last sample
+
+	//settings
+	Map<String, String> settings;
+	int numPlayers;
+	int duration; //seconds, including the ramp
+	int ramp; //seconds over which players arrive
+	int actionInterval; //milliseconds between W3GS actions of each player
+	int actionSize; //bytes in each action
+	int retransmitTimeout; //milliseconds before a player sends a packet again
+	int initTimeout; //milliseconds before a player sends the connection init again
+	int reportInterval; //seconds between progress lines
+	long seed;
+
+	SimNetwork network;
+	SimLoginServer loginServer;
+	SimRoomServer roomServer;
+	SimGHost ghost;
+	Random random; //only used by the network thread after the players were created
+	List<SimPlayer> players;
+	List<SimPlayer> active; //players that arrived; only used by the network thread
+
+	//results
+	LatencyHistogram joinLatency; //milliseconds from arriving in the room until GHost++ accepted the join
+	LatencyHistogram echoLatency; //microseconds from sending an action until its echo arrived
+	AtomicInteger joined;
+	AtomicInteger closed; //connections that ended, whether or not the player had joined
+
+	//gcb CPU time, sampled during the run so that threads which end before the report are counted too
+	//(per-connection GarenaTCP threads, retired TCPWorkers, connect workers); only used by the main thread
+	ThreadMXBean threadBean;
+	Map<Long, Long> threadCPU; //thread ID -> CPU nanoseconds at the last sample, for gcb's threads
+	Set<Long> simThreads; //IDs of the threads that aren't gcb's
+	long gcbCPU; //CPU nanoseconds that gcb's threads used from the first sample until the last one
+
+	public GarenaSimulator(Map<String, String> settings) {
+		this.settings = settings;
+
+		numPlayers = getInt("players", 100);
+		duration = getInt("duration", 60);
+		ramp = getInt("ramp", 10);
+		actionInterval = getInt("interval", 100);
+		actionSize = Math.max(16, getInt("size", 64));
+		reportInterval = getInt("report", 5);
+		seed = getInt("seed", 1);
+
+		int delay = getInt("delay", 0);
+		int jitter = getInt("jitter", 0);
+		retransmitTimeout = getInt("rto", Math.max(200, 4 * (delay + jitter)));
+		initTimeout = Math.max(1000, 2 * retransmitTimeout);
+
+		network = new SimNetwork(getInt("loss", 0), delay, jitter, getInt("reorder", 0), seed);
+		random = new Random(seed);
+		players = new ArrayList<SimPlayer>();
+		active = new ArrayList<SimPlayer>();
+
+		joinLatency = new LatencyHistogram();
+		echoLatency = new LatencyHistogram();
+		joined = new AtomicInteger();
+		closed = new AtomicInteger();
+
+		threadBean = ManagementFactory.getThreadMXBean();
+		threadCPU = new HashMap<Long, Long>();
+		simThreads = new HashSet<Long>();
+	}
+
+	private int getInt(String key, int defaultValue) {
+		String value = settings.get(key);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	public void run() throws Exception {
+		network.start();
+
+		loginServer = new SimLoginServer(GCB_USER_ID, "gcbsim", network);
+		loginServer.start();
+
+		int roomId = getInt("room", 65536);
+		roomServer = new SimRoomServer(roomId);
+		roomServer.start();
+
+		DatagramSocket probe = new DatagramSocket(0);
+		int broadcastPort = probe.getLocalPort();
+		probe.close();
+
+		ghost = new SimGHost(random.nextInt(), broadcastPort);
+		ghost.start();
+
+		final File configFile = writeConfig(roomId, broadcastPort);
+		Thread gcb = new Thread("gcb") {
+			public void run() {
+				try {
+					Main.main(new String[] {configFile.getPath()});
+				} catch(IOException ioe) {
+					System.out.println("[GarenaSimulator] gcb failed: " + ioe.getLocalizedMessage());
+					System.exit(-1);
+				}
+			}
+		};
+		gcb.setDaemon(true);
+		gcb.start();
+
+		//wait until gcb is in the room and has seen GAMEINFO from GHost++
+		long deadline = System.currentTimeMillis() + 30000;
+
+		while(!roomServer.joined || loginServer.peerAddress == null) {
+			if(System.currentTimeMillis() > deadline) {
+				System.out.println("[GarenaSimulator] gcb did not join the room within 30 seconds");
+				System.exit(-1);
+			}
+
+			Thread.sleep(100);
+		}
+
+		Thread.sleep(1500);
+		System.out.println("[GarenaSimulator] gcb joined the room with peer socket " + loginServer.peerAddress +
+				"; starting " + numPlayers + " players over " + ramp + " seconds");
+
+		for(int i = 0; i < numPlayers; i++) {
+			SimPlayer player = new SimPlayer(this, FIRST_PLAYER_ID + i, "sim" + i);
+			network.open(player);
+			players.add(player);
+		}
+
+		network.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				long now = System.currentTimeMillis();
+
+				for(SimPlayer player : active) {
+					player.tick(now);
+				}
+			}
+		}, 10);
+
+		sampleCPU(true);
+		long start = System.currentTimeMillis();
+		long nextReport = start + reportInterval * 1000L;
+		long nextSample = start + CPU_SAMPLE_INTERVAL;
+		int arrived = 0;
+
+		while(System.currentTimeMillis() - start < duration * 1000L) {
+			long elapsed = System.currentTimeMillis() - start;
+
+			//players arrive evenly spread over the ramp
+			while(arrived < numPlayers && (ramp == 0 || elapsed >= ramp * 1000L * arrived / numPlayers)) {
+				final SimPlayer player = players.get(arrived++);
+				roomServer.join(player);
+
+				network.execute(new Runnable() {
+					public void run() {
+						active.add(player);
+						player.arrive();
+					}
+				});
+			}
+
+			if(System.currentTimeMillis() >= nextReport) {
+				System.out.println(String.format("[GarenaSimulator] %ds: %d arrived, %d joined, %d closed, echo p50/p99 %.1f/%.1f ms",
+						elapsed / 1000, arrived, joined.get(), closed.get(),
+						echoLatency.getPercentile(50) / 1000.0, echoLatency.getPercentile(99) / 1000.0));
+				nextReport += reportInterval * 1000L;
+			}
+
+			if(System.currentTimeMillis() >= nextSample) {
+				sampleCPU(false);
+				nextSample += CPU_SAMPLE_INTERVAL;
+			}
+
+			Thread.sleep(10);
+		}
+
+		sampleCPU(false);
+		report(System.currentTimeMillis() - start);
+		System.exit(0);
+	}
+
+	private File writeConfig(int roomId, int broadcastPort) throws IOException {
+		Map<String, String> config = new LinkedHashMap<String, String>();
+		config.put("garena1_roomid", Integer.toString(roomId));
+		config.put("garena1_roomhost", "127.0.0.1");
+		config.put("garena1_mainhost", "127.0.0.1");
+		config.put("garena1_peerport", "0");
+		config.put("garena_username", "gcbsim");
+		config.put("garena_password", "gcbsim");
+		config.put("gcb_tcp_host", "127.0.0.1:" + ghost.getPort());
+		config.put("gcb_broadcastport", Integer.toString(broadcastPort));
+		config.put("gcb_log", "false");
+		config.put("gcb_log_commands", "false");
+		config.put("gcb_loglevel", "3");
+		config.put("gcb_bot", "false");
+		config.put("gcb_rcon", "false");
+		config.put("gcb_plugins", "");
+		config.put("gcb_broadcastfilter_key", "true"); //read without a default when REQJOIN is rewritten
+
+		for(Map.Entry<String, String> entry : settings.entrySet()) {
+			if(entry.getKey().startsWith("gcb_") || entry.getKey().startsWith("garena")) {
+				config.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		File file = File.createTempFile("gcbsim", ".cfg");
+		file.deleteOnExit();
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+
+		for(Map.Entry<String, String> entry : config.entrySet()) {
+			out.println(entry.getKey() + " = " + entry.getValue());
+		}
+
+		out.close();
+		return file;
+	}
+
+	//adds the CPU time that gcb's threads used since the last sample to gcbCPU; with first, only takes the starting values
+	//threads that start between samples are counted from their start; simulator threads are named "sim ...",
+	// and main runs the simulation, so neither is counted
+	private void sampleCPU(boolean first) {
+		Map<Long, Long> current = new HashMap<Long, Long>();
+
+		for(long id : threadBean.getAllThreadIds()) {
+			if(simThreads.contains(id)) {
+				continue;
+			}
+
+			Long previous = threadCPU.get(id);
+
+			if(previous == null) {
+				ThreadInfo info = threadBean.getThreadInfo(id);
+
+				if(info == null) {
+					continue; //ended already
+				} else if(info.getThreadName().startsWith("sim") || info.getThreadName().equals("main")) {
+					simThreads.add(id);
+					continue;
+				}
+			}
+
+			long time = threadBean.getThreadCpuTime(id);
+
+			if(time < 0) {
+				continue; //ended already, or CPU time isn't supported
+			}
+
+			if(!first) {
+				gcbCPU += time - (previous == null ? 0 : previous);
+			}
+
+			current.put(id, time);
+		}
+
+		threadCPU = current;
+	}
+
+	private void report(long elapsed) throws InterruptedException {
+		long cpu = gcbCPU;
+
+		//player counters belong to the network thread
+		final long[] totals = new long[5];
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		network.execute(new Runnable() {
+			public void run() {
+				for(SimPlayer player : active) {
+					totals[0] += player.bytesSent;
+					totals[1] += player.bytesReceived;
+					totals[2] += player.retransmissions;
+					totals[3] += player.echoes;
+
+					if(player.state == SimPlayer.STATE_SEARCHING || player.state == SimPlayer.STATE_JOINING) {
+						totals[4]++;
+					}
+				}
+
+				latch.countDown();
+			}
+		});
+		latch.await();
+
+		double seconds = elapsed / 1000.0;
+		int numJoined = Math.max(1, joined.get());
+		double cpuPercent = cpu / 1e7 / seconds; //percent of one core
+
+		System.out.println();
+		System.out.println("gcb simulation: " + numPlayers + " players, " + String.format("%.0f", seconds) + " s, settings " + settings);
+		System.out.println(String.format("players       %d joined, %d still joining, %d closed; %d REQJOIN with a wrong entry key",
+				joined.get(), totals[4], closed.get(), ghost.rejected.get()));
+		System.out.println(String.format("join latency  p50 %d ms, p90 %d ms, p99 %d ms, max %d ms",
+				joinLatency.getPercentile(50), joinLatency.getPercentile(90), joinLatency.getPercentile(99), joinLatency.getMax()));
+		System.out.println(String.format("echo latency  p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms over %d echoes",
+				echoLatency.getPercentile(50) / 1000.0, echoLatency.getPercentile(90) / 1000.0,
+				echoLatency.getPercentile(99) / 1000.0, echoLatency.getMax() / 1000.0, totals[3]));
+		System.out.println(String.format("throughput    players -> GHost++ %.1f KB/s, GHost++ -> players %.1f KB/s (%.2f / %.2f KB/s per player)",
+				ghost.bytesReceived.get() / 1024.0 / seconds, totals[1] / 1024.0 / seconds,
+				ghost.bytesReceived.get() / 1024.0 / seconds / numJoined, totals[1] / 1024.0 / seconds / numJoined));
+		System.out.println(String.format("link          %d datagrams to gcb, %d from gcb, %d lost, %d reordered; %d player retransmissions",
+				network.datagramsSent.get(), network.datagramsReceived.get(), network.datagramsLost.get(),
+				network.datagramsReordered.get(), totals[2]));
+		System.out.println(String.format("gcb cpu       %.1f%% of a core, %.3f%% per joined player",
+				cpuPercent, cpuPercent / numJoined));
+	}
+
+	//called by players on the network thread
+	void recordJoin(SimPlayer player, long milliseconds) {
+		joined.incrementAndGet();
+		joinLatency.record(milliseconds);
+	}
+
+	void recordEcho(long microseconds) {
+		echoLatency.record(microseconds);
+	}
+
+	void recordClose(SimPlayer player) {
+		closed.incrementAndGet();
+	}
+
+	int nextConnId() {
+		return random.nextInt();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+
+		for(String arg : args) {
+			int index = arg.indexOf('=');
+
+			if(index <= 0) {
+				System.out.println("usage: GarenaSimulator [key=value]...; see sim/README");
+				return;
+			}
+
+			settings.put(arg.substring(0, index), arg.substring(index + 1));
+		}
+
+		new GarenaSimulator(settings).run();
+	}
+}
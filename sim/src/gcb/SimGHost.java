@@ -0,0 +1,184 @@
+package gcb;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SimGHost {
+	//stand-in for GHost++: broadcasts GAMEINFO for one game to gcb's broadcast port every second, and
+	// accepts the TCP connections that gcb makes for joining players
+	//a REQJOIN with the game's real entry key is answered with SLOTINFOJOIN and anything else with
+	// REJECTJOIN, which tells us whether gcb rewrote the entry key; every other W3GS packet is echoed back
+
+	static final byte[] PRODUCT = {'P', 'X', '3', 'W'}; //W3XP, reversed
+	static final int VERSION = 26;
+	static final int W3GS_SLOTINFOJOIN = 0x04;
+	static final int W3GS_REJECTJOIN = 0x05;
+	static final int W3GS_OUTGOING_ACTION = 0x26;
+	static final int W3GS_SEARCHGAME = 0x2F;
+
+	static final int HOST_COUNTER = 1;
+	static final String GAME_NAME = "gcb sim";
+
+	int entryKey;
+	int broadcastPort; //gcb_broadcastport
+	ServerSocket server;
+	DatagramSocket broadcastSocket;
+	long started;
+
+	AtomicLong connections;
+	AtomicLong rejected; //REQJOIN with the wrong entry key
+	AtomicLong bytesReceived; //W3GS bytes from gcb
+	AtomicLong bytesSent;
+
+	public SimGHost(int entryKey, int broadcastPort) {
+		this.entryKey = entryKey;
+		this.broadcastPort = broadcastPort;
+
+		connections = new AtomicLong();
+		rejected = new AtomicLong();
+		bytesReceived = new AtomicLong();
+		bytesSent = new AtomicLong();
+	}
+
+	public void start() throws IOException {
+		started = System.currentTimeMillis();
+		server = new ServerSocket(0, 512, InetAddress.getLoopbackAddress());
+		broadcastSocket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+		Thread acceptor = new Thread("sim ghost") {
+			public void run() {
+				acceptLoop();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		Thread broadcaster = new Thread("sim ghost broadcast") {
+			public void run() {
+				while(true) {
+					try {
+						byte[] gameInfo = createGameInfo();
+						broadcastSocket.send(new DatagramPacket(gameInfo, gameInfo.length, InetAddress.getLoopbackAddress(), broadcastPort));
+					} catch(IOException ioe) {
+						Main.println(1, "[SimGHost] Broadcast failed: " + ioe.getLocalizedMessage());
+					}
+
+					try {
+						Thread.sleep(1000);
+					} catch(InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		};
+		broadcaster.setDaemon(true);
+		broadcaster.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	//W3GS_GAMEINFO as GHost++ broadcasts it
+	byte[] createGameInfo() {
+		byte[] statString = "sim map".getBytes(); //any string without zero bytes
+		ByteBuffer buf = ByteBuffer.allocate(4 + 16 + GAME_NAME.length() + 1 + 1 + statString.length + 1 + 22);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.put((byte) Constants.W3GS_HEADER_CONSTANT);
+		buf.put((byte) Constants.W3GS_GAMEINFO);
+		buf.putShort((short) buf.capacity());
+		buf.put(PRODUCT);
+		buf.putInt(VERSION);
+		buf.putInt(HOST_COUNTER);
+		buf.putInt(entryKey);
+		buf.put(GAME_NAME.getBytes());
+		buf.put((byte) 0);
+		buf.put((byte) 0); //password
+		buf.put(statString);
+		buf.put((byte) 0);
+		buf.putInt(12); //slots total
+		buf.putInt(1); //game type
+		buf.putInt(1); //unknown
+		buf.putInt(12); //slots available
+		buf.putInt((int) ((System.currentTimeMillis() - started) / 1000)); //uptime
+		buf.putShort((short) getPort());
+		return buf.array();
+	}
+
+	private void acceptLoop() {
+		while(true) {
+			final Socket socket;
+
+			try {
+				socket = server.accept();
+				socket.setTcpNoDelay(true);
+			} catch(IOException ioe) {
+				return;
+			}
+
+			long id = connections.incrementAndGet();
+			Thread thread = new Thread("sim ghost " + id) {
+				public void run() {
+					serve(socket);
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			byte[] packet = new byte[65536];
+
+			while(true) {
+				in.readFully(packet, 0, 4);
+				int length = (packet[2] & 0xFF) | ((packet[3] & 0xFF) << 8);
+
+				if(GarenaEncrypt.unsignedByte(packet[0]) != Constants.W3GS_HEADER_CONSTANT || length < 4) {
+					Main.println(1, "[SimGHost] Invalid W3GS packet from gcb; disconnecting");
+					break;
+				}
+
+				in.readFully(packet, 4, length - 4);
+				bytesReceived.addAndGet(length);
+
+				if(GarenaEncrypt.unsignedByte(packet[1]) == Constants.W3GS_REQJOIN) {
+					boolean accepted = length >= 12 && GarenaEncrypt.byteArrayToIntLittle(packet, 8) == entryKey;
+					byte[] reply = new byte[accepted ? 32 : 8];
+					reply[0] = (byte) Constants.W3GS_HEADER_CONSTANT;
+					reply[1] = (byte) (accepted ? W3GS_SLOTINFOJOIN : W3GS_REJECTJOIN);
+					reply[2] = (byte) reply.length;
+
+					if(!accepted) {
+						rejected.incrementAndGet();
+					}
+
+					out.write(reply);
+					bytesSent.addAndGet(reply.length);
+				} else {
+					out.write(packet, 0, length);
+					bytesSent.addAndGet(length);
+				}
+			}
+		} catch(IOException ioe) {
+			//gcb closed the connection
+		}
+
+		try {
+			socket.close();
+		} catch(IOException ioe) {}
+	}
+}
@@ -0,0 +1,190 @@
+package gcb;
+
+import java.io.DataInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.bouncycastle.crypto.encodings.PKCS1Encoding;
+import org.bouncycastle.crypto.engines.RSAEngine;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
+import org.bouncycastle.crypto.util.PublicKeyFactory;
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+
+public class SimLoginServer {
+	//stand-in for the Garena main server: GSP on TCP 7456 and the external address lookup on UDP 1513
+	//GSP: the session init is decrypted with the public half of gkey.pem to get the AES key, then the
+	// init, hello and login are answered; everything gcb sends after the login is read and ignored
+	//lookup: the reply carries the address and port that the request came from, which is also how
+	// the simulated players learn where gcb's peer socket is
+
+	static final int GSP_PORT = 7456;
+	static final int LOOKUP_PORT = 1513;
+
+	int userId; //user ID that gcb gets
+	String username;
+
+	ServerSocket server;
+	DatagramSocket lookupSocket;
+	AsymmetricKeyParameter publicKey;
+	SimNetwork network;
+
+	volatile boolean loggedIn;
+	volatile InetSocketAddress peerAddress; //gcb's peer socket
+
+	public SimLoginServer(int userId, String username, SimNetwork network) {
+		this.userId = userId;
+		this.username = username;
+		this.network = network;
+	}
+
+	public void start() throws IOException {
+		PEMParser pemreader = new PEMParser(new FileReader("gkey.pem"));
+		PEMKeyPair keyPair = (PEMKeyPair) pemreader.readObject();
+		pemreader.close();
+		publicKey = PublicKeyFactory.createKey(keyPair.getPublicKeyInfo());
+
+		server = new ServerSocket(GSP_PORT, 8, InetAddress.getLoopbackAddress());
+		lookupSocket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), LOOKUP_PORT));
+
+		Thread acceptor = new Thread("sim login") {
+			public void run() {
+				while(true) {
+					try {
+						final Socket socket = server.accept();
+						Thread thread = new Thread("sim login session") {
+							public void run() {
+								serve(socket);
+							}
+						};
+						thread.setDaemon(true);
+						thread.start();
+					} catch(IOException ioe) {
+						return;
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		Thread lookup = new Thread("sim lookup") {
+			public void run() {
+				lookupLoop();
+			}
+		};
+		lookup.setDaemon(true);
+		lookup.start();
+	}
+
+	private void serve(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+
+			//session init: size, 0x00AD, then the RSA block with the AES key and IV
+			byte[] header = new byte[4];
+			in.readFully(header);
+			int size = GarenaEncrypt.byteArrayToIntLittle(header, 0);
+			byte[] block = new byte[size];
+			in.readFully(block);
+
+			PKCS1Encoding cipher = new PKCS1Encoding(new RSAEngine());
+			cipher.init(false, publicKey);
+			byte[] plain = cipher.processBlock(block, 2, size - 2);
+
+			byte[] key = new byte[32];
+			byte[] iv = new byte[16];
+			System.arraycopy(plain, 0, key, 0, 32);
+			System.arraycopy(plain, 32, iv, 0, 16);
+
+			GarenaEncrypt crypt = new GarenaEncrypt();
+			crypt.initAES(key, iv);
+			send(out, crypt, new byte[] {(byte) 0xAE, 0, 0, 0});
+
+			while(true) {
+				in.readFully(header);
+				size = GarenaEncrypt.byteArrayToIntLittleLength(header, 0, 2);
+				byte[] bb = new byte[size];
+				in.readFully(bb);
+				byte[] data = crypt.aesDecrypt(bb);
+
+				if(GarenaEncrypt.unsignedByte(data[0]) == 0xD3) {
+					send(out, crypt, new byte[] {(byte) 0xD3, 0, 0, 0});
+				} else if(data[0] == 0x1F) {
+					send(out, crypt, createLoginReply());
+					loggedIn = true;
+				}
+			}
+		} catch(Exception e) {
+			//gcb disconnected, or sent something we don't understand
+		}
+
+		try {
+			socket.close();
+		} catch(IOException ioe) {}
+	}
+
+	//encrypted GSP message: 3-byte size, 1, then the data
+	private void send(OutputStream out, GarenaEncrypt crypt, byte[] data) throws Exception {
+		byte[] encrypted = crypt.aesEncrypt(data);
+		ByteBuffer buf = ByteBuffer.allocate(4 + encrypted.length);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(encrypted.length);
+		buf.put(3, (byte) 1);
+		buf.put(encrypted);
+		out.write(buf.array());
+	}
+
+	//login reply: type, 8 unknown bytes, then myinfo
+	private byte[] createLoginReply() {
+		byte[] email = "sim@localhost".getBytes();
+		ByteBuffer buf = ByteBuffer.allocate(9 + 92 + email.length);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.put((byte) 0x45);
+		buf.position(9);
+		buf.putInt(userId);
+		buf.put(SimRoomServer.fixedString(username, 16));
+		buf.put("VN".getBytes());
+		buf.put(9 + 25, (byte) 1); //experience
+		buf.position(9 + 92);
+		buf.put(email);
+		return buf.array();
+	}
+
+	private void lookupLoop() {
+		byte[] buf = new byte[1024];
+
+		while(true) {
+			try {
+				DatagramPacket packet = new DatagramPacket(buf, buf.length);
+				lookupSocket.receive(packet);
+
+				if(packet.getLength() < 1 || buf[0] != 0x05) {
+					continue; //room usage and anything else
+				}
+
+				byte[] reply = new byte[16];
+				reply[0] = 0x06;
+				System.arraycopy(packet.getAddress().getAddress(), 0, reply, 8, 4);
+				reply[12] = (byte) (packet.getPort() >> 8);
+				reply[13] = (byte) packet.getPort();
+				lookupSocket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+
+				peerAddress = new InetSocketAddress(packet.getAddress(), packet.getPort());
+				network.setGCBAddress(peerAddress);
+			} catch(IOException ioe) {
+				return;
+			}
+		}
+	}
+}
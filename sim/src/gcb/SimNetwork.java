@@ -0,0 +1,230 @@
+package gcb;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SimNetwork {
+	//the impaired link between the simulated players and gcb's peer socket
+	//every player has its own UDP socket on the loopback interface; datagrams in either direction
+	// may be lost, delayed by delay +/- jitter milliseconds, or held back so that later ones overtake them
+	//impairment is decided by one seeded random generator per direction, so the same seed gives the same
+	// decisions for the same sequence of datagrams; thread scheduling in gcb still varies between runs
+	//all player logic runs on the single "sim network" thread, so players need no locking
+
+	InetAddress loopback;
+	SocketAddress gcbAddress; //gcb's peer socket, learned from the lookup
+
+	int lossPercent;
+	int delay; //milliseconds
+	int jitter; //milliseconds, uniformly distributed in [-jitter, jitter]
+	int reorderPercent; //datagrams that are held back for an extra delay + jitter + 1 milliseconds
+
+	Random upstream; //player -> gcb, only used by the network thread
+	Random downstream; //gcb -> player, only used by the receive thread
+
+	ScheduledExecutorService executor;
+	Selector selector;
+	Queue<SimPlayer> registrations; //players whose channels have to be registered with the selector
+	Thread receiver;
+
+	AtomicLong datagramsSent; //player -> gcb, before impairment
+	AtomicLong datagramsReceived; //gcb -> player, before impairment
+	AtomicLong datagramsLost;
+	AtomicLong datagramsReordered;
+
+	public SimNetwork(int lossPercent, int delay, int jitter, int reorderPercent, long seed) {
+		this.lossPercent = lossPercent;
+		this.delay = delay;
+		this.jitter = Math.min(jitter, delay);
+		this.reorderPercent = reorderPercent;
+
+		upstream = new Random(seed);
+		downstream = new Random(seed * 31 + 1);
+		registrations = new LinkedList<SimPlayer>();
+		loopback = InetAddress.getLoopbackAddress();
+
+		datagramsSent = new AtomicLong();
+		datagramsReceived = new AtomicLong();
+		datagramsLost = new AtomicLong();
+		datagramsReordered = new AtomicLong();
+	}
+
+	public void start() throws IOException {
+		selector = Selector.open();
+
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "sim network");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		receiver = new Thread("sim receive") {
+			public void run() {
+				receiveLoop();
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	public void setGCBAddress(SocketAddress address) {
+		gcbAddress = address;
+	}
+
+	//opens the player's socket; the player receives datagrams through SimPlayer.receive on the network thread
+	public DatagramChannel open(SimPlayer player) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(loopback, 0));
+		channel.configureBlocking(false);
+
+		//the receive thread registers player.channel as soon as it sees the player, so it is set first;
+		// the registrations lock makes it visible to that thread
+		synchronized(registrations) {
+			player.channel = channel;
+			registrations.add(player);
+		}
+
+		selector.wakeup();
+		return channel;
+	}
+
+	//runs task on the network thread
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	//runs task on the network thread after delay milliseconds
+	public void schedule(Runnable task, long delay) {
+		executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	public void scheduleAtFixedRate(Runnable task, long period) {
+		executor.scheduleAtFixedRate(task, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	//sends a datagram from the player to gcb through the impaired link; must be called on the network thread
+	public void send(final DatagramChannel channel, final byte[] data, final int length) {
+		datagramsSent.incrementAndGet();
+		long wait = impair(upstream);
+
+		if(wait < 0) {
+			return;
+		} else if(wait == 0) {
+			write(channel, data, length);
+		} else {
+			schedule(new Runnable() {
+				public void run() {
+					write(channel, data, length);
+				}
+			}, wait);
+		}
+	}
+
+	private void write(DatagramChannel channel, byte[] data, int length) {
+		try {
+			channel.send(ByteBuffer.wrap(data, 0, length), gcbAddress);
+		} catch(IOException ioe) {
+			Main.println(1, "[SimNetwork] Send failed: " + ioe.getLocalizedMessage());
+		}
+	}
+
+	//returns how long a datagram is held back, or -1 if it is lost
+	private long impair(Random random) {
+		if(lossPercent > 0 && random.nextInt(100) < lossPercent) {
+			datagramsLost.incrementAndGet();
+			return -1;
+		}
+
+		long wait = delay;
+
+		if(jitter > 0) {
+			wait += random.nextInt(2 * jitter + 1) - jitter;
+		}
+
+		if(reorderPercent > 0 && random.nextInt(100) < reorderPercent) {
+			datagramsReordered.incrementAndGet();
+			wait += delay + jitter + 1;
+		}
+
+		return wait;
+	}
+
+	private void receiveLoop() {
+		ByteBuffer buf = ByteBuffer.allocate(65536);
+
+		try {
+			while(true) {
+				selector.select();
+
+				synchronized(registrations) {
+					while(!registrations.isEmpty()) {
+						SimPlayer player = registrations.poll();
+						player.channel.register(selector, SelectionKey.OP_READ, player);
+					}
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					final SimPlayer player = (SimPlayer) key.attachment();
+					DatagramChannel channel = (DatagramChannel) key.channel();
+
+					while(true) {
+						buf.clear();
+
+						if(channel.receive(buf) == null) {
+							break;
+						}
+
+						final byte[] data = new byte[buf.position()];
+						System.arraycopy(buf.array(), 0, data, 0, data.length);
+						datagramsReceived.incrementAndGet();
+
+						long wait = impair(downstream);
+
+						if(wait < 0) {
+							continue;
+						}
+
+						Runnable delivery = new Runnable() {
+							public void run() {
+								player.receive(data);
+							}
+						};
+
+						if(wait == 0) {
+							execute(delivery);
+						} else {
+							schedule(delivery, wait);
+						}
+					}
+				}
+			}
+		} catch(ClosedSelectorException cse) {
+			//shutting down
+		} catch(IOException ioe) {
+			Main.println(1, "[SimNetwork] Receive loop failed: " + ioe.getLocalizedMessage());
+		}
+	}
+}
@@ -0,0 +1,343 @@
+package gcb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+public class SimPlayer {
+	//one simulated Garena user: it joins the room, finds the game with SEARCHGAME, connects to it through
+	// gcb's virtual TCP and joins it with REQJOIN, then sends W3GS actions that the fake GHost++ echoes
+	//the client side of the virtual TCP is kept simple: every unacknowledged packet is sent again after a
+	// fixed timeout, and packets from gcb are acknowledged one by one
+	//everything except the constructor runs on the network thread
+
+	static final int STATE_WAITING = 0; //not in the room yet
+	static final int STATE_SEARCHING = 1; //sent SEARCHGAME, waiting for GAMEINFO
+	static final int STATE_JOINING = 2; //sent REQJOIN, waiting for GHost++ to answer
+	static final int STATE_PLAYING = 3;
+	static final int STATE_CLOSED = 4;
+
+	static final int SEARCH_INTERVAL = 1000; //milliseconds between SEARCHGAME packets while searching
+
+	GarenaSimulator sim;
+	SimNetwork network;
+	DatagramChannel channel;
+
+	int userId;
+	String username;
+	int state;
+
+	long arrivedTime; //nanoTime when we joined the room
+	long lastSearch; //milliseconds
+	long lastInit; //milliseconds
+	long nextAction; //milliseconds
+
+	//virtual TCP connection to gcb
+	int connId;
+	int gamePort;
+	int hostCounter;
+	int entryKey;
+	boolean connected; //whether gcb has sent anything on the connection
+	int sendSeq; //sequence number of the next packet we send
+	TreeMap<Integer, SimSegment> unacked;
+	int receiveNext; //sequence number of the next packet we expect from gcb
+	TreeMap<Integer, byte[]> outOfOrder;
+	ByteBuffer stream; //received W3GS data that doesn't form a whole packet yet
+
+	//statistics; only the network thread changes these
+	long bytesSent; //W3GS bytes, without retransmissions
+	long bytesReceived; //W3GS bytes delivered in order
+	long retransmissions;
+	long echoes;
+
+	class SimSegment {
+		byte[] datagram;
+		long sentTime;
+
+		SimSegment(byte[] datagram) {
+			this.datagram = datagram;
+		}
+	}
+
+	public SimPlayer(GarenaSimulator sim, int userId, String username) {
+		this.sim = sim;
+		this.network = sim.network;
+		this.userId = userId;
+		this.username = username;
+
+		state = STATE_WAITING;
+		unacked = new TreeMap<Integer, SimSegment>();
+		outOfOrder = new TreeMap<Integer, byte[]>();
+		stream = ByteBuffer.allocate(65536);
+		stream.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public int getPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	//called after the room server announced us
+	public void arrive() {
+		arrivedTime = System.nanoTime();
+		state = STATE_SEARCHING;
+		sendSearch();
+	}
+
+	//called every tick on the network thread
+	public void tick(long now) {
+		if(state == STATE_SEARCHING && now - lastSearch >= SEARCH_INTERVAL) {
+			sendSearch();
+		}
+
+		if(state == STATE_JOINING && !connected && now - lastInit >= sim.initTimeout) {
+			//our init may have been lost; gcb ignores it if the connection exists already
+			sendInit();
+		}
+
+		if(state == STATE_JOINING || state == STATE_PLAYING) {
+			Iterator<SimSegment> it = unacked.values().iterator();
+
+			while(it.hasNext()) {
+				SimSegment segment = it.next();
+
+				if(now - segment.sentTime >= sim.retransmitTimeout) {
+					segment.sentTime = now;
+					retransmissions++;
+					network.send(channel, segment.datagram, segment.datagram.length);
+				}
+			}
+		}
+
+		if(state == STATE_PLAYING) {
+			if(now - nextAction > sim.actionInterval) {
+				nextAction = now; //we fell behind, don't send a burst to catch up
+			}
+
+			while(now >= nextAction) {
+				sendAction();
+				nextAction += sim.actionInterval;
+			}
+		}
+	}
+
+	//called on the network thread with a datagram from gcb that made it through the link
+	public void receive(byte[] data) {
+		if(data.length < 4 || state == STATE_CLOSED) {
+			return;
+		}
+
+		if(data[0] == 0x01 && data.length >= 20) {
+			//UDP encapsulation; we only care about GAMEINFO
+			if(state == STATE_SEARCHING && GarenaEncrypt.unsignedByte(data[16]) == Constants.W3GS_HEADER_CONSTANT
+					&& GarenaEncrypt.unsignedByte(data[17]) == Constants.W3GS_GAMEINFO && data.length >= 36) {
+				gamePort = ((data[8] & 0xFF) << 8) | (data[9] & 0xFF);
+				hostCounter = GarenaEncrypt.byteArrayToIntLittle(data, 16 + 12);
+				entryKey = GarenaEncrypt.byteArrayToIntLittle(data, 16 + 16);
+				join();
+			}
+		} else if(data[0] == 0x0D && data.length >= 20) {
+			if(GarenaEncrypt.byteArrayToIntLittle(data, 4) != connId || (state != STATE_JOINING && state != STATE_PLAYING)) {
+				return;
+			}
+
+			connected = true;
+			int seq = GarenaEncrypt.byteArrayToIntLittle(data, 12);
+
+			if(data[1] == 0x14) {
+				receiveData(seq, data);
+			} else if(data[1] == 0x0E) {
+				int ack = GarenaEncrypt.byteArrayToIntLittle(data, 16);
+				unacked.remove(seq);
+				unacked.headMap(ack).clear();
+			} else if(data[1] == 0x01) {
+				close("connection ended by gcb");
+			}
+		}
+	}
+
+	private void join() {
+		state = STATE_JOINING;
+		connId = sim.nextConnId();
+		sendInit();
+
+		//W3GS_REQJOIN, sent right after the init like Garena does
+		byte[] name = username.getBytes();
+		ByteBuffer buf = ByteBuffer.allocate(19 + name.length + 1 + 18);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.put((byte) Constants.W3GS_HEADER_CONSTANT);
+		buf.put((byte) Constants.W3GS_REQJOIN);
+		buf.putShort((short) buf.capacity());
+		buf.putInt(hostCounter);
+		buf.putInt(entryKey);
+		buf.put((byte) 0);
+		buf.putShort((short) 6112); //listen port
+		buf.putInt(userId); //peer key
+		buf.put(name);
+		buf.put((byte) 0);
+		//remainder: unknown short and internal sockaddr, all zero
+		sendW3GS(buf.array());
+	}
+
+	private void sendInit() {
+		lastInit = System.currentTimeMillis();
+
+		byte[] datagram = new byte[20];
+		ByteBuffer buf = ByteBuffer.wrap(datagram);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(0x0B);
+		buf.putInt(userId);
+		buf.putInt(connId);
+		buf.put(network.loopback.getAddress());
+		buf.putInt(gamePort); //little endian short followed by two zeroes
+		network.send(channel, datagram, datagram.length);
+	}
+
+	private void sendSearch() {
+		lastSearch = System.currentTimeMillis();
+
+		//W3GS_SEARCHGAME in a UDP encapsulation, from and to the Warcraft III port
+		byte[] datagram = new byte[32];
+		ByteBuffer buf = ByteBuffer.wrap(datagram);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(0x01);
+		buf.putInt(userId);
+		buf.order(ByteOrder.BIG_ENDIAN);
+		buf.putShort((short) WC3Interface.BROADCAST_PORT);
+		buf.putShort((short) 0);
+		buf.putShort((short) WC3Interface.BROADCAST_PORT);
+		buf.putShort((short) 0);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.put((byte) Constants.W3GS_HEADER_CONSTANT);
+		buf.put((byte) SimGHost.W3GS_SEARCHGAME);
+		buf.putShort((short) 16);
+		buf.put(SimGHost.PRODUCT);
+		buf.putInt(SimGHost.VERSION);
+		buf.putInt(0);
+		network.send(channel, datagram, datagram.length);
+	}
+
+	//W3GS_OUTGOING_ACTION carrying the send time, which comes back in the echo
+	private void sendAction() {
+		byte[] packet = new byte[sim.actionSize];
+		ByteBuffer buf = ByteBuffer.wrap(packet);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.put((byte) Constants.W3GS_HEADER_CONSTANT);
+		buf.put((byte) SimGHost.W3GS_OUTGOING_ACTION);
+		buf.putShort((short) packet.length);
+		buf.putInt(0); //CRC
+		buf.putLong(System.nanoTime());
+		sendW3GS(packet);
+	}
+
+	private void sendW3GS(byte[] packet) {
+		byte[] datagram = new byte[20 + packet.length];
+		ByteBuffer buf = ByteBuffer.wrap(datagram);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.put((byte) 0x0D);
+		buf.put((byte) 0x14);
+		buf.putShort((short) 0);
+		buf.putInt(connId);
+		buf.putInt(userId);
+		buf.putInt(sendSeq);
+		buf.putInt(receiveNext);
+		buf.put(packet);
+
+		SimSegment segment = new SimSegment(datagram);
+		segment.sentTime = System.currentTimeMillis();
+		unacked.put(sendSeq, segment);
+		sendSeq++;
+		bytesSent += packet.length;
+		network.send(channel, datagram, datagram.length);
+	}
+
+	private void receiveData(int seq, byte[] data) {
+		if(seq == receiveNext) {
+			deliver(data);
+			receiveNext++;
+
+			while(!outOfOrder.isEmpty() && outOfOrder.firstKey() == receiveNext) {
+				deliver(outOfOrder.remove(receiveNext));
+				receiveNext++;
+			}
+		} else if(seq - receiveNext > 0 && !outOfOrder.containsKey(seq)) {
+			outOfOrder.put(seq, data);
+		}
+
+		byte[] datagram = new byte[20];
+		ByteBuffer buf = ByteBuffer.wrap(datagram);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.put((byte) 0x0D);
+		buf.put((byte) 0x0E);
+		buf.putShort((short) 0);
+		buf.putInt(connId);
+		buf.putInt(userId);
+		buf.putInt(seq);
+		buf.putInt(receiveNext);
+		network.send(channel, datagram, datagram.length);
+	}
+
+	//appends the payload of a data packet to the stream and handles every whole W3GS packet in it
+	private void deliver(byte[] data) {
+		int length = data.length - 20;
+
+		if(length > stream.remaining()) {
+			close("W3GS stream overflow");
+			return;
+		}
+
+		stream.put(data, 20, length);
+		bytesReceived += length;
+		stream.flip();
+
+		while(stream.remaining() >= 4) {
+			int packetLength = GarenaEncrypt.unsignedShort(stream.getShort(stream.position() + 2));
+
+			if(packetLength < 4) {
+				close("invalid W3GS packet from GHost++");
+				return;
+			} else if(stream.remaining() < packetLength) {
+				break;
+			}
+
+			handleW3GS(stream.array(), stream.position(), packetLength);
+			stream.position(stream.position() + packetLength);
+		}
+
+		stream.compact();
+	}
+
+	private void handleW3GS(byte[] data, int offset, int length) {
+		int type = GarenaEncrypt.unsignedByte(data[offset + 1]);
+
+		if(state == STATE_JOINING) {
+			if(type == SimGHost.W3GS_SLOTINFOJOIN) {
+				state = STATE_PLAYING;
+				nextAction = System.currentTimeMillis();
+				sim.recordJoin(this, (System.nanoTime() - arrivedTime) / 1000000);
+			} else {
+				close("join rejected by GHost++");
+			}
+		} else if(type == SimGHost.W3GS_OUTGOING_ACTION && length >= 16) {
+			long sent = ByteBuffer.wrap(data, offset + 8, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+			echoes++;
+			sim.recordEcho((System.nanoTime() - sent) / 1000);
+		}
+	}
+
+	private void close(String reason) {
+		Main.println(1, "[SimPlayer " + username + "] Closed: " + reason);
+		state = STATE_CLOSED;
+		sim.recordClose(this);
+	}
+
+	public void leave() {
+		if(channel != null) {
+			try {
+				channel.close();
+			} catch(IOException ioe) {}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package gcb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SimRoomServer {
+	//stand-in for a Garena room server: GCRP on TCP 8687
+	//when gcb joins, it gets the member list with the players that are in the room already; players that
+	// arrive later are announced with a JOIN message; everything else that gcb sends is read and ignored
+
+	static final int GCRP_PORT = 8687;
+
+	int roomId;
+	ServerSocket server;
+	DataOutputStream out; //connection to gcb, or null; protected by this
+	List<SimPlayer> members; //protected by this
+
+	volatile boolean joined; //whether gcb has joined the room
+
+	public SimRoomServer(int roomId) {
+		this.roomId = roomId;
+		members = new ArrayList<SimPlayer>();
+	}
+
+	public void start() throws IOException {
+		server = new ServerSocket(GCRP_PORT, 8, InetAddress.getLoopbackAddress());
+
+		Thread acceptor = new Thread("sim room") {
+			public void run() {
+				while(true) {
+					try {
+						serve(server.accept());
+					} catch(IOException ioe) {
+						return;
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void serve(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			byte[] header = new byte[4];
+
+			synchronized(this) {
+				out = new DataOutputStream(socket.getOutputStream());
+			}
+
+			while(true) {
+				in.readFully(header);
+				int size = GarenaEncrypt.byteArrayToIntLittleLength(header, 0, 3);
+				byte[] data = new byte[size];
+				in.readFully(data);
+
+				if(data[0] == 0x22) {
+					sendMemberList();
+					joined = true;
+				}
+			}
+		} catch(IOException ioe) {
+			//gcb left the room
+		}
+
+		synchronized(this) {
+			out = null;
+		}
+
+		joined = false;
+
+		try {
+			socket.close();
+		} catch(IOException ioe) {}
+	}
+
+	private synchronized void sendMemberList() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4 + 9 + 64 * members.size());
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(9 + 64 * members.size());
+		buf.put((byte) 44); //member list
+		buf.putInt(roomId);
+		buf.putInt(members.size());
+
+		for(SimPlayer player : members) {
+			putMemberInfo(buf, player);
+		}
+
+		out.write(buf.array());
+	}
+
+	//adds the player to the room and tells gcb about it
+	public synchronized void join(SimPlayer player) throws IOException {
+		members.add(player);
+
+		if(out != null) {
+			ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 64);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(1 + 64);
+			buf.put((byte) 34); //JOIN
+			putMemberInfo(buf, player);
+			out.write(buf.array());
+		}
+	}
+
+	//64-byte member entry; the external and internal address are both the player's loopback socket
+	private void putMemberInfo(ByteBuffer buf, SimPlayer player) {
+		int start = buf.position();
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(player.userId);
+		buf.put(fixedString(player.username, 16));
+		buf.put("VN".getBytes());
+		buf.put(start + 25, (byte) 1); //experience
+		buf.put(start + 27, (byte) 1); //playing
+
+		buf.position(start + 28);
+		buf.put(InetAddress.getLoopbackAddress().getAddress());
+		buf.put(InetAddress.getLoopbackAddress().getAddress());
+
+		buf.order(ByteOrder.BIG_ENDIAN);
+		buf.putShort(start + 40, (short) player.getPort());
+		buf.putShort(start + 42, (short) player.getPort());
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.position(start + 64);
+	}
+
+	//string in a zero-padded field of length bytes
+	static byte[] fixedString(String string, int length) {
+		byte[] field = new byte[length];
+		byte[] bytes = string.getBytes();
+		System.arraycopy(bytes, 0, field, 0, Math.min(bytes.length, length - 1));
+		return field;
+	}
+}
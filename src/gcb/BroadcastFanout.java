@@ -0,0 +1,210 @@
+package gcb;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BroadcastFanout {
+	//broadcasts UDP encap packets to every playing member of every room
+	//the WC3 broadcast thread only copies the payload and queues it for each room; every room has its own
+	// queue and sender thread, so a big member list or a slow room only delays the broadcasts of that room
+	//each sender snapshots its room's targets without holding members while sending, and all jobs
+	// queued at the time a batch starts are sent back-to-back
+	//if a room falls behind and its queue is full, its oldest droppable job is dropped (GAMEINFO of a known
+	// game or W3GS_REFRESHGAME, which GHost++ will send again); W3GS_DECREATEGAME and the GAMEINFO of a new
+	// game are never dropped, so these may exceed MAX_QUEUED_JOBS
+
+	//maximum number of jobs to queue for each room before droppable jobs are dropped
+	public static int MAX_QUEUED_JOBS = 256;
+
+	Map<Integer, GarenaInterface> garenaConnections;
+
+	//room -> its sender, created when the room gets its first broadcast; protected by senders
+	Map<GarenaInterface, RoomSender> senders;
+	List<GarenaInterface> rooms; //reused by broadcast, protected by senders
+
+	AtomicLong dropped; //jobs dropped in all rooms because they were behind
+
+	public BroadcastFanout(Map<Integer, GarenaInterface> garenaConnections) {
+		this.garenaConnections = garenaConnections;
+		senders = new HashMap<GarenaInterface, RoomSender>();
+		rooms = new ArrayList<GarenaInterface>();
+		dropped = new AtomicLong();
+	}
+
+	//queues data to be broadcasted to all rooms; data is copied, so the caller may reuse it
+	//droppable should only be true if the packet will be sent again, so that losing it in a room that is behind is harmless
+	public void broadcast(int source, int destination, byte[] data, int offset, int length, boolean droppable) {
+		byte[] copy = new byte[length];
+		System.arraycopy(data, offset, copy, 0, length);
+		FanoutJob job = new FanoutJob(source, destination, copy, droppable);
+
+		synchronized(senders) {
+			rooms.clear();
+
+			synchronized(garenaConnections) {
+				rooms.addAll(garenaConnections.values());
+			}
+
+			for(GarenaInterface garena : rooms) {
+				RoomSender sender = senders.get(garena);
+
+				if(sender == null) {
+					sender = new RoomSender(garena);
+					senders.put(garena, sender);
+					sender.start();
+				}
+
+				sender.add(job);
+			}
+		}
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	//returns the number of jobs waiting in the room that is furthest behind
+	public int getMaxQueued() {
+		int max = 0;
+
+		synchronized(senders) {
+			for(RoomSender sender : senders.values()) {
+				max = Math.max(max, sender.queued());
+			}
+		}
+
+		return max;
+	}
+
+	class RoomSender extends Thread {
+		GarenaInterface garena;
+		LinkedList<FanoutJob> queue;
+
+		//only used from this thread; reused between batches
+		List<FanoutJob> batch;
+		List<SocketAddress> targets;
+
+		public RoomSender(GarenaInterface garena) {
+			this.garena = garena;
+			queue = new LinkedList<FanoutJob>();
+			batch = new ArrayList<FanoutJob>();
+			targets = new ArrayList<SocketAddress>();
+
+			setName("BroadcastFanout " + garena.id);
+			setDaemon(true);
+		}
+
+		public void add(FanoutJob job) {
+			synchronized(queue) {
+				if(queue.size() >= MAX_QUEUED_JOBS && !dropOldest(job)) {
+					return;
+				}
+
+				queue.add(job);
+				queue.notifyAll();
+			}
+		}
+
+		//makes room for job in a full queue: drops the oldest droppable job, or job itself if there is none
+		//returns whether job should still be queued; called with queue held
+		private boolean dropOldest(FanoutJob job) {
+			Iterator<FanoutJob> it = queue.iterator();
+
+			while(it.hasNext()) {
+				if(it.next().droppable) {
+					it.remove();
+					dropped.incrementAndGet();
+					Main.println(11, "[BroadcastFanout] Warning: queue of room " + garena.id + " full, dropping oldest broadcast");
+					return true;
+				}
+			}
+
+			if(job.droppable) {
+				dropped.incrementAndGet();
+				Main.println(11, "[BroadcastFanout] Warning: queue of room " + garena.id + " full, dropping broadcast");
+				return false;
+			}
+
+			//nothing can be dropped, so the queue grows
+			return true;
+		}
+
+		public int queued() {
+			synchronized(queue) {
+				return queue.size();
+			}
+		}
+
+		public void run() {
+			while(true) {
+				try {
+					synchronized(queue) {
+						while(queue.isEmpty()) {
+							try {
+								queue.wait();
+							} catch(InterruptedException ie) {}
+						}
+
+						//take everything that is queued as one batch
+						while(!queue.isEmpty()) {
+							batch.add(queue.poll());
+						}
+					}
+
+					fanout();
+				} catch(Exception e) {
+					Main.println(1, "[BroadcastFanout] CRITICAL ERROR: caught in loop of room " + garena.id + ": " + e.getLocalizedMessage());
+					e.printStackTrace();
+				}
+
+				batch.clear();
+			}
+		}
+
+		//sends the current batch to every playing member of this room
+		private void fanout() {
+			if(garena.peer_channel == null || !garena.peer_channel.isOpen()) {
+				return;
+			}
+
+			targets.clear();
+			garena.getBroadcastTargets(targets);
+
+			if(targets.isEmpty()) {
+				return;
+			}
+
+			for(int j = 0; j < batch.size(); j++) {
+				FanoutJob job = batch.get(j);
+
+				//encode once for this room; only the sender ID differs between rooms
+				ByteBuffer lbuf = garena.encodeUDPEncap(job.source, job.destination, job.data, 0, job.data.length);
+
+				for(int i = 0; i < targets.size(); i++) {
+					garena.sendUDPEncap(targets.get(i), lbuf);
+				}
+			}
+		}
+	}
+
+	class FanoutJob {
+		int source;
+		int destination;
+		byte[] data; //shared by the queues of all rooms, never modified
+		boolean droppable;
+
+		public FanoutJob(int source, int destination, byte[] data, boolean droppable) {
+			this.source = source;
+			this.destination = destination;
+			this.data = data;
+			this.droppable = droppable;
+		}
+	}
+}
@@ -29,7 +29,7 @@ public class ConnectWorkerPool {
 		numActiveWorkers = 0;
 		
 		for(int i = 0; i < GCBConfig.configuration.getInt("gcb_connectworkers", 8); i++) {
-			new ConnectWorker().start();
+			VirtualThreads.start(new ConnectWorker());
 		}
 	}
 	
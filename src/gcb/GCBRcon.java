@@ -14,6 +14,7 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TimerTask;
 
 /**
@@ -174,6 +175,20 @@ public class GCBRcon implements Runnable {
 						out.println("Good night.");
 						System.exit(0);
 					}
+				} else if(command.equals("tcp")) {
+					//per-connection round trip times, window and losses; optionally for one connection ID or username
+					if(main.tcpPool == null) {
+						out.println("GarenaTCP is not running.");
+						continue;
+					}
+
+					List<String> lines = main.tcpPool.getConnectionStats(parts.length >= 2 ? parts[1] : null);
+
+					for(String line : lines) {
+						out.println(line);
+					}
+
+					out.println(lines.size() + " connection(s)");
 				}
 			}
 			
@@ -0,0 +1,169 @@
+package gcb;
+
+public class GameInfoRewriter {
+	//rewrites W3GS_GAMEINFO from GHost++ into what Garena users get, in one pass over the bytes: the gamename
+	// goes through gcb_broadcastfilter_gamename, and with rewriteKey, the entry key is replaced and the
+	// war3version set to gcb_broadcastfilter_war3version; everything else is copied as it is
+	//configuration is read once, when the rewriter is created
+	//the rewritten packet is in packet, which is reused for the next one; this class is not thread safe,
+	// WC3Interface only uses it from the broadcast thread
+
+	public static final int OK = 0;
+	public static final int BAD_HEADER = 1; //not a W3GS packet
+	public static final int BAD_TYPE = 2; //not W3GS_GAMEINFO
+	public static final int BAD_FORMAT = 3; //too short, or a string is missing its terminator
+
+	static final int GAMENAME_OFFSET = 20; //after header, type, length, product, war3version, host counter and entry key
+	static final int MAX_GAMENAME = 30; //longest rewritten gamename, without the terminator
+
+	//gcb_broadcastfilter_gamename split at every %g, or null to keep the gamename
+	byte[][] gamenameParts;
+	int war3version; //0 to keep it
+
+	byte[] packet; //rewritten packet
+	int packetLength;
+
+	//fields of the last packet; gamename is a range of the received packet, not of the rewritten one
+	int gamenameOffset;
+	int gamenameLength;
+	int hostCounter;
+	int ghostEntryKey;
+	int slotsTotal;
+	int slotsAvailable;
+	int slotsOffset; //of slots available in the rewritten packet
+	int gameport;
+
+	public GameInfoRewriter(int maxLength) {
+		//the gamename can grow by at most MAX_GAMENAME bytes
+		packet = new byte[maxLength + MAX_GAMENAME];
+
+		String skeleton = GCBConfig.configuration.getString("gcb_broadcastfilter_gamename");
+
+		if(skeleton != null && !skeleton.trim().isEmpty()) {
+			String[] parts = skeleton.split("%g", -1);
+			gamenameParts = new byte[parts.length][];
+
+			for(int i = 0; i < parts.length; i++) {
+				gamenameParts[i] = parts[i].getBytes();
+			}
+		}
+
+		war3version = GCBConfig.configuration.getInt("gcb_broadcastfilter_war3version", 0);
+	}
+
+	//rewrites the gamename of a received packet into packet and reads its fields; returns OK or why it failed
+	public int rewrite(byte[] data, int offset, int length) {
+		int end = offset + length;
+
+		if(length < 1 || GarenaEncrypt.unsignedByte(data[offset]) != Constants.W3GS_HEADER_CONSTANT) {
+			return BAD_HEADER;
+		} else if(length < 2 || GarenaEncrypt.unsignedByte(data[offset + 1]) != Constants.W3GS_GAMEINFO) {
+			return BAD_TYPE;
+		}
+
+		//header, type, length, product, war3version, host counter, entry key
+		int position = offset + GAMENAME_OFFSET;
+		int nameEnd = terminator(data, position, end);
+
+		if(nameEnd < 0) {
+			return BAD_FORMAT;
+		}
+
+		hostCounter = GarenaEncrypt.byteArrayToIntLittle(data, offset + 12);
+		ghostEntryKey = GarenaEncrypt.byteArrayToIntLittle(data, offset + 16);
+		gamenameOffset = position;
+		gamenameLength = nameEnd - position;
+
+		System.arraycopy(data, offset, packet, 0, GAMENAME_OFFSET);
+		int out = GAMENAME_OFFSET;
+		out = writeGamename(data, gamenameOffset, gamenameLength, out);
+		packet[out++] = 0;
+		position = nameEnd + 1;
+
+		//game password, statstring, slots total, 8 more bytes, slots available, uptime and the port
+		int statEnd = terminator(data, position + 1, end);
+
+		if(statEnd < 0 || statEnd + 1 + 12 + 4 + 4 + 2 > end) {
+			return BAD_FORMAT;
+		}
+
+		slotsTotal = GarenaEncrypt.byteArrayToIntLittle(data, statEnd + 1);
+		slotsAvailable = GarenaEncrypt.byteArrayToIntLittle(data, statEnd + 1 + 12);
+		slotsOffset = out + statEnd + 1 + 12 - position;
+		gameport = (data[statEnd + 1 + 20] & 0xFF) | (data[statEnd + 1 + 21] & 0xFF) << 8; //little endian
+
+		//the rest is copied as it is, including anything after the port
+		System.arraycopy(data, position, packet, out, end - position);
+		packetLength = out + end - position;
+		return OK;
+	}
+
+	//replaces the entry key with ours and sets the war3version, if it's configured
+	public void rewriteKey(int garenaEntryKey) {
+		if(war3version != 0) {
+			putIntLittle(8, war3version);
+		}
+
+		putIntLittle(16, garenaEntryKey);
+	}
+
+	private int writeGamename(byte[] data, int nameOffset, int nameLength, int out) {
+		if(gamenameParts == null) {
+			System.arraycopy(data, nameOffset, packet, out, nameLength);
+			return out + nameLength;
+		}
+
+		int start = out;
+		int limit = start + MAX_GAMENAME;
+
+		for(int i = 0; i < gamenameParts.length && out < limit; i++) {
+			if(i > 0) {
+				out = put(data, nameOffset, nameLength, out, limit);
+			}
+
+			out = put(gamenameParts[i], 0, gamenameParts[i].length, out, limit);
+		}
+
+		//don't cut a multibyte (UTF-8) character in half
+		if(out == limit) {
+			int lead = out - 1;
+
+			while(lead > start && (packet[lead] & 0xC0) == 0x80) {
+				lead--;
+			}
+
+			int first = packet[lead] & 0xFF;
+			int characterLength = first >= 0xF0 ? 4 : (first >= 0xE0 ? 3 : (first >= 0xC0 ? 2 : 1));
+
+			if(out - lead < characterLength) {
+				out = lead;
+			}
+		}
+
+		return out;
+	}
+
+	private int put(byte[] source, int sourceOffset, int length, int out, int limit) {
+		length = Math.min(length, limit - out);
+		System.arraycopy(source, sourceOffset, packet, out, length);
+		return out + length;
+	}
+
+	private void putIntLittle(int index, int value) {
+		packet[index] = (byte) value;
+		packet[index + 1] = (byte) (value >> 8);
+		packet[index + 2] = (byte) (value >> 16);
+		packet[index + 3] = (byte) (value >> 24);
+	}
+
+	//index of the null terminator of a string that starts at position, or -1 if there is none before end
+	private static int terminator(byte[] data, int position, int end) {
+		for(int i = position; i < end; i++) {
+			if(data[i] == 0) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+}
@@ -21,10 +21,12 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -32,6 +34,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.CRC32;
 
 /**
@@ -43,6 +46,12 @@ public class GarenaInterface {
 	public static int GARENA_ROOM = 1;
 	public static int GARENA_PEER = 2;
 	public static final String TIME_FORMAT = "HH:mm:ss";
+	
+	//initial size of the per-thread peer send buffer; grown if a larger datagram is sent
+	public static int SEND_BUFFER_SIZE = 2048;
+	
+	//reusable peer send buffer for each sending thread, so that sends do not allocate
+	private static final ThreadLocal<ByteBuffer> sendBuffer = new ThreadLocal<ByteBuffer>();
 
 	//id in configuration
 	public int id; //TODO change this to private
@@ -69,7 +78,8 @@ public class GarenaInterface {
 
 	//peer to peer objects
 	int peer_port;
-	DatagramSocket peer_socket;
+	DatagramChannel peer_channel;
+	DatagramSocket peer_socket; //socket adaptor of peer_channel
 
 	List<MemberInfo> members;
 	List<RoomInfo> rooms;
@@ -117,6 +127,13 @@ public class GarenaInterface {
 	//TCP connection pool manager
 	GarenaTCPPool tcpPool;
 	
+	//selector based peer engine; null if each room uses its own readPeerLoop thread
+	GarenaPeerEngine peerEngine;
+	
+	//peer send statistics for this room
+	AtomicLong peerPacketsSent = new AtomicLong();
+	AtomicLong peerBytesSent = new AtomicLong();
+	
 	//bind address
 	InetAddress bindAddress;
 
@@ -181,6 +198,10 @@ public class GarenaInterface {
 	public void setGarenaTCPPool(GarenaTCPPool tcpPool) {
 		this.tcpPool = tcpPool;
 	}
+	
+	public void setPeerEngine(GarenaPeerEngine peerEngine) {
+		this.peerEngine = peerEngine;
+	}
 
 	public boolean init() {
 		Main.println(5, "[GInterface " + id + "] Initializing...");
@@ -249,16 +270,21 @@ public class GarenaInterface {
 		peer_port = GCBConfig.configuration.getInt("garena" + id + "_peerport", 0);
 		
 		//init GP2PP socket
+		//we always open a channel so that sends work the same way whether or not
+		// the peer engine is used; peer_socket is the channel's socket adaptor
 		try {
+			peer_channel = DatagramChannel.open();
+			peer_socket = peer_channel.socket();
+			
 			//if bindAddress unset, then use wildcard address; otherwise bind to specified address
 			//similarly, if peer port is 0, allow OS to determine port
 			if(bindAddress == null) {
 				if(peer_port == 0) {
-					peer_socket = new DatagramSocket();
+					peer_socket.bind(new InetSocketAddress(0));
 					peer_port = peer_socket.getLocalPort();
 					Main.println(7, "[GInterface " + id + "] Autoset peerport=" + peer_port);
 				} else {
-					peer_socket = new DatagramSocket(peer_port);
+					peer_socket.bind(new InetSocketAddress(peer_port));
 				}
 			} else {
 				if(peer_port == 0) {
@@ -270,16 +296,25 @@ public class GarenaInterface {
 					}
 				}
 				
-				peer_socket = new DatagramSocket(peer_port, bindAddress);
+				peer_socket.bind(new InetSocketAddress(bindAddress, peer_port));
 			}
 
 			if(peer_socket.getInetAddress() instanceof Inet6Address) {
 				Main.println(7, "[GInterface " + id + "] Warning: binded to IPv6 address: " + peer_socket.getInetAddress());
 			}
+			
+			//the peer engine reads from the channel with a selector
+			if(peerEngine != null) {
+				peer_channel.configureBlocking(false);
+			}
 		} catch(IOException ioe) {
 			if(Main.DEBUG) {
 				ioe.printStackTrace();
 			}
+			
+			if(peer_socket != null) {
+				peer_socket.close();
+			}
 
 			Main.println(6, "[GInterface " + id + "] Unable to establish peer socket on port " + peer_port + ": " + ioe.getLocalizedMessage());
 			return false;
@@ -1743,35 +1778,28 @@ public class GarenaInterface {
 	}
 
 	public void readPeerLoop() {
-		byte[] buf_array = new byte[65536];
+		DatagramPacket packet = new DatagramPacket(new byte[0], 0);
 
 		while(true) {
+			//datagrams are received into pooled buffers, which are passed on without copying
+			PacketBuffer buffer = PacketBuffer.get();
+
 			try {
-				DatagramPacket packet = new DatagramPacket(buf_array, buf_array.length);
+				packet.setData(buffer.array);
 				peer_socket.receive(packet);
+				buffer.length = packet.getLength();
 
-				//notify plugins
-				plugins.onPacket(GARENA_PEER, -1, buf_array, packet.getOffset(), packet.getLength());
-
-				int length = packet.getLength();
-				
-				if(length == 0) {
+				if(buffer.length == PacketBuffer.SIZE) {
+					//the datagram may have been truncated
+					Main.println(10, "[GInterface " + id + "] PeerLoop: dropping oversized packet from " + packet.getAddress());
+					buffer.release();
 					continue;
 				}
-				
-				byte[] bytes = new byte[length];
-				System.arraycopy(buf_array, 0, bytes, 0, length);
-
-				if(buf_array[0] == 0x06 || buf_array[0] == 0x3F || buf_array[0] == 0x0F || buf_array[0] == 0x02 || buf_array[0] == 0x01) {
-					peerLoopWorker.append(packet.getAddress(), packet.getPort(), bytes);
-				} else if(buf_array[0] == 0x0B && !exitingNicely) { //initconn, don't accept if we're exiting though
-					tcpPool.enqueue(this, packet.getAddress(), packet.getPort(), bytes);
-				} else if(buf_array[0] == 0x0D) {
-					tcpPool.enqueue(this, packet.getAddress(), packet.getPort(), bytes);
-				} else {
-					Main.println(10, "[GInterface " + id + "] PeerLoop: unknown type received: " + buf_array[0] + "; size is: " + length);
-				}
+
+				processPeerPacket(packet.getAddress(), packet.getPort(), buffer);
 			} catch(IOException ioe) {
+				buffer.release();
+
 				Main.println(6, "[GInterface " + id + "] PeerLoop: error: " + ioe.getLocalizedMessage());
 				Main.println(6, "[GInterface " + id + "] PeerLoop: peer socket failed!");
 				ioe.printStackTrace();
@@ -1781,6 +1809,74 @@ public class GarenaInterface {
 		}
 	}
 
+	//dispatches a datagram received on the peer socket
+	//this is called from readPeerLoop, or from GarenaPeerEngine if it is enabled
+	//this takes over the caller's reference to buffer
+	public void processPeerPacket(InetAddress address, int port, PacketBuffer buffer) {
+		byte[] bytes = buffer.array;
+		int length = buffer.length;
+
+		//notify plugins
+		plugins.onPacket(GARENA_PEER, -1, bytes, 0, length);
+		
+		if(length == 0) {
+			buffer.release();
+			return;
+		}
+
+		if(bytes[0] == 0x06 || bytes[0] == 0x3F || bytes[0] == 0x0F || bytes[0] == 0x02 || bytes[0] == 0x01) {
+			//the peer loop worker keeps the packet, so it gets its own copy
+			peerLoopWorker.append(address, port, buffer.copy());
+			buffer.release();
+		} else if(bytes[0] == 0x0B && !exitingNicely) { //initconn, don't accept if we're exiting though
+			tcpPool.enqueue(this, address, port, buffer);
+		} else if(bytes[0] == 0x0D) {
+			tcpPool.enqueue(this, address, port, buffer);
+		} else {
+			Main.println(10, "[GInterface " + id + "] PeerLoop: unknown type received: " + bytes[0] + "; size is: " + length);
+			buffer.release();
+		}
+	}
+	
+	//sends a datagram on the peer channel
+	//peer_socket.send cannot be used directly since it fails when the channel is non-blocking
+	public void sendPeer(byte[] array, int offset, int length, InetAddress address, int port) throws IOException {
+		sendPeer(ByteBuffer.wrap(array, offset, length), new InetSocketAddress(address, port));
+	}
+	
+	//sends the remaining bytes of buf on the peer channel
+	//this is the common send path; it doesn't allocate if buf is direct
+	public void sendPeer(ByteBuffer buf, SocketAddress target) throws IOException {
+		int sent = peer_channel.send(buf, target);
+		
+		if(sent > 0) {
+			peerPacketsSent.incrementAndGet();
+			peerBytesSent.addAndGet(sent);
+		}
+	}
+	
+	//returns the calling thread's reusable send buffer, cleared and with room for at least size bytes
+	public static ByteBuffer getSendBuffer(int size) {
+		ByteBuffer buf = sendBuffer.get();
+		
+		if(buf == null || buf.capacity() < size) {
+			buf = ByteBuffer.allocateDirect(Math.max(size, SEND_BUFFER_SIZE));
+			sendBuffer.set(buf);
+		}
+		
+		buf.clear();
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		return buf;
+	}
+	
+	public long getPeerPacketsSent() {
+		return peerPacketsSent.get();
+	}
+	
+	public long getPeerBytesSent() {
+		return peerBytesSent.get();
+	}
+
 	public void sendPeerLookup() {
 	    if(peer_socket == null) {
             Main.println(6, "[GInterface " + id + "] Failed to send lookup: peer socket not initialized");
@@ -1792,10 +1888,8 @@ public class GarenaInterface {
 		tmp[0] = 0x05;
 
 		//we don't use peer_port because even if we're hosting Garena on 1515, server is still 1513
-		DatagramPacket packet = new DatagramPacket(tmp, tmp.length, main_address, 1513);
-
 		try {
-			peer_socket.send(packet);
+			sendPeer(tmp, 0, tmp.length, main_address, 1513);
 		} catch(IOException ioe) {
 			Main.println(6, "[GInterface " + id + "] Failed to send lookup: " + ioe.getLocalizedMessage());
 			ioe.printStackTrace();
@@ -1810,10 +1904,8 @@ public class GarenaInterface {
 		lbuf.putInt(1, user_id); //our user ID
 
 		//we don't use peer_port because even if we're hosting Garena on 1515, server is still 1513
-		DatagramPacket packet = new DatagramPacket(lbuf.array(), lbuf.array().length, main_address, 1513);
-
 		try {
-			peer_socket.send(packet);
+			sendPeer(lbuf.array(), 0, lbuf.array().length, main_address, 1513);
 		} catch(IOException ioe) {
 			Main.println(6, "[GInterface " + id + "] Failed to room usage check: " + ioe.getLocalizedMessage());
 			ioe.printStackTrace();
@@ -1843,10 +1935,10 @@ public class GarenaInterface {
 
 				if(target.correctIP == null) {
 					//send on both external and internal
-					sendPeerHello(target.userID, target.externalIP, target.externalPort);
-					sendPeerHello(target.userID, target.internalIP, target.internalPort);
+					sendPeerHello(target.userID, target.getExternalSocketAddress());
+					sendPeerHello(target.userID, target.getInternalSocketAddress());
 				} else {
-					sendPeerHello(target.userID, target.correctIP, target.correctPort);
+					sendPeerHello(target.userID, target.getCorrectSocketAddress());
 				}
 			}
 		}
@@ -1858,34 +1950,33 @@ public class GarenaInterface {
 	}
 
 	public void sendPeerHello(int target_id, InetAddress address, int port) {
-		ByteBuffer lbuf = ByteBuffer.allocate(16);
-		lbuf.order(ByteOrder.LITTLE_ENDIAN);
-		lbuf.put(0, (byte) 0x02);
-		lbuf.putInt(4, user_id);
+		sendPeerHello(target_id, new InetSocketAddress(address, port));
+	}
 
-		DatagramPacket packet = new DatagramPacket(lbuf.array(), lbuf.array().length, address, port);
+	public void sendPeerHello(int target_id, SocketAddress target) {
+		ByteBuffer lbuf = getSendBuffer(16);
+		lbuf.putInt(0x02);
+		lbuf.putInt(user_id);
+		lbuf.putLong(0);
+		lbuf.flip();
 
 		try {
-			peer_socket.send(packet);
+			sendPeer(lbuf, target);
 		} catch(IOException ioe) {
 			//ioe.printStackTrace(); //this happens a lot; ignore!
 		}
 	}
 
-	public void sendPeerHelloReply(int target_id, InetAddress address, int port, ByteBuffer lbuf) {
-		lbuf.clear();
-		lbuf.order(ByteOrder.LITTLE_ENDIAN);
-		lbuf.put(0, (byte) 0x0F);
-		lbuf.putInt(4, user_id);
-		lbuf.putInt(12, target_id);
-		lbuf.position(0);
-		byte[] tmp = new byte[16];
-		lbuf.get(tmp);
-
-		DatagramPacket packet = new DatagramPacket(tmp, tmp.length, address, port);
+	public void sendPeerHelloReply(int target_id, SocketAddress target) {
+		ByteBuffer lbuf = getSendBuffer(16);
+		lbuf.putInt(0x0F);
+		lbuf.putInt(user_id);
+		lbuf.putInt(0);
+		lbuf.putInt(target_id);
+		lbuf.flip();
 
 		try {
-			peer_socket.send(packet);
+			sendPeer(lbuf, target);
 		} catch(IOException ioe) {
 			//ioe.printStackTrace(); //this happens a lot; ignore!
 		}
@@ -1915,49 +2006,75 @@ public class GarenaInterface {
 		return null;
 	}
 	
+	//sends to every playing member of this room on the calling thread; WC3 broadcasts go through BroadcastFanout instead
+	//like BroadcastFanout, the targets are copied first, so members isn't held while sending
 	public void broadcastUDPEncap(int source, int destination, byte[] data, int offset, int length) {
+		List<SocketAddress> targets = new ArrayList<SocketAddress>();
+		getBroadcastTargets(targets);
+
+		//the datagram is the same for every member, so only encode it once
+		ByteBuffer lbuf = encodeUDPEncap(source, destination, data, offset, length);
+
+		for(int i = 0; i < targets.size(); i++) {
+			sendUDPEncap(targets.get(i), lbuf);
+		}
+	}
+
+	//adds the addresses that broadcasts are sent to (both addresses if the correct one is unknown)
+	//members is only locked while copying, so that the caller can send without holding it
+	public void getBroadcastTargets(List<SocketAddress> targets) {
 		synchronized(members) {
 			for(MemberInfo target : members) {
 				if(target.userID == this.user_id) continue;
 				if(!target.playing) continue; //don't broadcast if they don't have WC3 open
 
 				if(target.correctIP == null) {
-					//send on both external and internal
-					sendUDPEncap(target.externalIP, target.externalPort, source, destination, data, offset, length);
-					sendUDPEncap(target.internalIP, target.internalPort, source, destination, data, offset, length);
+					targets.add(target.getExternalSocketAddress());
+					targets.add(target.getInternalSocketAddress());
 				} else {
-					sendUDPEncap(target.correctIP, target.correctPort, source, destination, data, offset, length);
+					targets.add(target.getCorrectSocketAddress());
 				}
 			}
 		}
 	}
 
 	public void sendUDPEncap(InetAddress address, int port, int source, int destination, byte[] data, int offset, int length) {
-		ByteBuffer lbuf = ByteBuffer.allocate(length + 16);
-		lbuf.order(ByteOrder.LITTLE_ENDIAN);
-		lbuf.put(0, (byte) 0x01);
-		lbuf.putInt(4, user_id);
-		lbuf.order(ByteOrder.BIG_ENDIAN);
-		lbuf.putShort(8, (short) source);
-		lbuf.putShort(12, (short) destination);
-		lbuf.position(16);
-		lbuf.put(data, offset, length);
+		sendUDPEncap(new InetSocketAddress(address, port), source, destination, data, offset, length);
+	}
 
-		byte[] array = lbuf.array();
-		DatagramPacket packet = new DatagramPacket(array, array.length, address, port);
+	public void sendUDPEncap(SocketAddress target, int source, int destination, byte[] data, int offset, int length) {
+		sendUDPEncap(target, encodeUDPEncap(source, destination, data, offset, length));
+	}
+	
+	//sends a datagram previously encoded by encodeUDPEncap; lbuf can be sent any number of times
+	public void sendUDPEncap(SocketAddress target, ByteBuffer lbuf) {
+		lbuf.position(0);
 
 		try {
-			peer_socket.send(packet);
+			sendPeer(lbuf, target);
 		} catch(IOException ioe) {
 			//ioe.printStackTrace();
 		}
 	}
 	
+	//encodes the 16-byte GP2PP UDP encapsulation header followed by data into this thread's send buffer
+	public ByteBuffer encodeUDPEncap(int source, int destination, byte[] data, int offset, int length) {
+		ByteBuffer lbuf = getSendBuffer(length + 16);
+		lbuf.putInt(0x01);
+		lbuf.putInt(user_id);
+		lbuf.order(ByteOrder.BIG_ENDIAN);
+		lbuf.putShort((short) source);
+		lbuf.putShort((short) 0);
+		lbuf.putShort((short) destination);
+		lbuf.putShort((short) 0);
+		lbuf.put(data, offset, length);
+		lbuf.flip();
+		return lbuf;
+	}
+	
 	public GarenaTCP sendTCPInit(InetAddress address, int port, int targetPort, int remote_id, Socket socket) {
-		//we create a new ByteBuffer because this is called from GCBReverseHost
-
-		ByteBuffer tbuf = ByteBuffer.allocate(20);
-		tbuf.order(ByteOrder.LITTLE_ENDIAN);
+		//this is called from GCBReverseHost, so use the thread's send buffer
+		ByteBuffer tbuf = getSendBuffer(20);
 		tbuf.putInt(0x0b);
 		tbuf.putInt(user_id);
 
@@ -1975,12 +2092,10 @@ public class GarenaInterface {
 
 		tbuf.putShort((short) targetPort); //destination TCP port in LITTLE ENDIAN
 		tbuf.putShort((short) 0);
-
-		byte[] array = tbuf.array();
-		DatagramPacket packet = new DatagramPacket(array, array.length, address, port);
+		tbuf.flip();
 
 		try {
-			peer_socket.send(packet);
+			sendPeer(tbuf, new InetSocketAddress(address, port));
 		} catch(IOException ioe) {
 			//ioe.printStackTrace();
 		}
@@ -2000,8 +2115,8 @@ public class GarenaInterface {
 		return tcp_connection;
 	}
 
-	public void sendTCPData(InetAddress address, int port, int conn_id, long last_time, int seq, int ack, byte[] data, int len, ByteBuffer lbuf) {
-		lbuf.position(0);
+	public void sendTCPData(SocketAddress target, int conn_id, long last_time, int seq, int ack, byte[] data, int len, ByteBuffer lbuf) {
+		lbuf.clear();
 		lbuf.order(ByteOrder.LITTLE_ENDIAN);
 		lbuf.put(0, (byte) 0x0D); //CONN message type identifier
 		lbuf.put(1, (byte) 0x14); //CONN DATA message type identifier
@@ -2016,19 +2131,17 @@ public class GarenaInterface {
 		
 		lbuf.position(20);
 		lbuf.put(data, 0, len); //payload
-
-		byte[] array = lbuf.array();
-		DatagramPacket packet = new DatagramPacket(array, 0, len + 20, address, port);
+		lbuf.flip();
 
 		try {
-			peer_socket.send(packet);
+			sendPeer(lbuf, target);
 		} catch(IOException ioe) {
 			//ioe.printStackTrace();
 		}
 	}
 
-	public void sendTCPAck(InetAddress address, int port, int conn_id, long last_time, int seq, int ack, ByteBuffer lbuf) {
-		lbuf.position(0);
+	public void sendTCPAck(SocketAddress target, int conn_id, long last_time, int seq, int ack, ByteBuffer lbuf) {
+		lbuf.clear();
 		lbuf.order(ByteOrder.LITTLE_ENDIAN);
 		lbuf.put(0, (byte) 0x0D); //CONN message type identifier
 		lbuf.put(1, (byte) 0x0E); //CONN ACK message type identifier
@@ -2040,19 +2153,17 @@ public class GarenaInterface {
 		lbuf.putInt(8, user_id); //sender user ID
 		lbuf.putInt(12, seq); //SEQ number
 		lbuf.putInt(16, ack); //ACK number
-
-		byte[] array = lbuf.array();
-		DatagramPacket packet = new DatagramPacket(array, 0, 20, address, port);
+		lbuf.limit(20);
 
 		try {
-			peer_socket.send(packet);
+			sendPeer(lbuf, target);
 		} catch(IOException ioe) {
 			//ioe.printStackTrace();
 		}
 	}
 
-	public void sendTCPFin(InetAddress address, int port, int conn_id, long last_time, ByteBuffer lbuf) {
-		lbuf.position(0);
+	public void sendTCPFin(SocketAddress target, int conn_id, long last_time, ByteBuffer lbuf) {
+		lbuf.clear();
 		lbuf.order(ByteOrder.LITTLE_ENDIAN);
 		lbuf.put(0, (byte) 0x0D); //CONN message type identifier
 		lbuf.put(1, (byte) 0x01); //CONN FIN message type identifier
@@ -2062,15 +2173,15 @@ public class GarenaInterface {
 
 		lbuf.putInt(4, conn_id); //connection ID
 		lbuf.putInt(8, user_id); //sender user ID
-
-		byte[] array = lbuf.array();
-		DatagramPacket packet = new DatagramPacket(array, 0, 20, address, port);
+		lbuf.putLong(12, 0);
 
 		try {
-			peer_socket.send(packet); //send 4 times to emulate client
-			peer_socket.send(packet);
-			peer_socket.send(packet);
-			peer_socket.send(packet);
+			//send 4 times to emulate client
+			for(int i = 0; i < 4; i++) {
+				lbuf.position(0);
+				lbuf.limit(20);
+				sendPeer(lbuf, target);
+			}
 		} catch(IOException ioe) {
 			//ioe.printStackTrace();
 		}
@@ -2217,7 +2328,7 @@ public class GarenaInterface {
 							member.correctIP = packet.address;
 							member.correctPort = packet.port;
 	
-							sendPeerHelloReply(member.userID, member.correctIP, member.correctPort, lbuf);
+							sendPeerHelloReply(member.userID, member.getCorrectSocketAddress());
 						}
 					} else if(packet.bytes[0] == 0x01) {
 						int senderId = lbuf.getInt(4);
@@ -0,0 +1,171 @@
+package gcb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+
+public class GarenaPeerEngine {
+	//this engine services the GP2PP (peer) sockets of every Garena connection
+	// from a small fixed set of selector threads, instead of running one
+	// blocking readPeerLoop thread per room
+	//dispatch semantics are the same as readPeerLoop (see GarenaInterface.processPeerPacket)
+
+
+	//maximum datagrams to read from one channel before servicing the others
+	public static int MAX_READS_PER_KEY = 64;
+
+	PeerSelector[] selectors;
+	int nextSelector = 0; //round robin counter for register
+
+	public GarenaPeerEngine(int numThreads) throws IOException {
+		if(numThreads <= 0) {
+			numThreads = 1;
+		}
+
+		selectors = new PeerSelector[numThreads];
+
+		for(int i = 0; i < numThreads; i++) {
+			selectors[i] = new PeerSelector(i);
+			selectors[i].start();
+		}
+
+		Main.println(3, "[GarenaPeerEngine] Started " + numThreads + " peer I/O thread(s)");
+	}
+
+	//registers the current peer channel of this Garena connection
+	//this must be called again after every initPeer, since reconnecting opens a new channel
+	public void register(GarenaInterface garena) {
+		PeerSelector selector;
+
+		synchronized(this) {
+			selector = selectors[nextSelector];
+			nextSelector = (nextSelector + 1) % selectors.length;
+		}
+
+		selector.register(garena);
+	}
+
+	class PeerSelector extends Thread {
+		int id;
+		Selector selector;
+		Queue<GarenaInterface> pending; //connections waiting to be registered on our selector
+
+		public PeerSelector(int id) throws IOException {
+			this.id = id;
+			selector = Selector.open();
+			pending = new LinkedList<GarenaInterface>();
+
+			setName("GarenaPeerEngine-" + id);
+			setDaemon(true);
+		}
+
+		public void register(GarenaInterface garena) {
+			synchronized(pending) {
+				pending.add(garena);
+			}
+
+			//registration has to happen on the selector thread, otherwise register blocks on select
+			selector.wakeup();
+		}
+
+		private void registerPending() {
+			synchronized(pending) {
+				while(!pending.isEmpty()) {
+					GarenaInterface garena = pending.poll();
+					DatagramChannel channel = garena.peer_channel;
+
+					if(channel == null || !channel.isOpen()) {
+						continue;
+					}
+
+					try {
+						channel.register(selector, SelectionKey.OP_READ, garena);
+						Main.println(11, "[GarenaPeerEngine " + id + "] Registered peer channel of connection " + garena.id);
+					} catch(ClosedChannelException cce) {
+						Main.println(6, "[GarenaPeerEngine " + id + "] Peer channel of connection " + garena.id + " closed before registration");
+					}
+				}
+			}
+		}
+
+		public void run() {
+			while(true) {
+				try {
+					selector.select();
+					registerPending();
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+					while(it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						if(key.isValid() && key.isReadable()) {
+							read(key);
+						}
+					}
+				} catch(IOException ioe) {
+					Main.println(1, "[GarenaPeerEngine " + id + "] Error in selector loop: " + ioe.getLocalizedMessage());
+
+					if(Main.DEBUG) {
+						ioe.printStackTrace();
+					}
+				} catch(Exception e) {
+					Main.println(1, "[GarenaPeerEngine " + id + "] CRITICAL ERROR: caught in loop: " + e.getLocalizedMessage());
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private void read(SelectionKey key) {
+			GarenaInterface garena = (GarenaInterface) key.attachment();
+			DatagramChannel channel = (DatagramChannel) key.channel();
+
+			for(int i = 0; i < MAX_READS_PER_KEY; i++) {
+				InetSocketAddress address;
+
+				//datagrams are received into pooled buffers, which are passed on without copying
+				PacketBuffer packetBuffer = PacketBuffer.get();
+
+				try {
+					address = (InetSocketAddress) channel.receive(packetBuffer.buffer);
+				} catch(IOException ioe) {
+					packetBuffer.release();
+					Main.println(6, "[GInterface " + garena.id + "] PeerLoop: error: " + ioe.getLocalizedMessage());
+					Main.println(6, "[GInterface " + garena.id + "] PeerLoop: peer socket failed!");
+					key.cancel();
+
+					try {
+						channel.close();
+					} catch(IOException e) {}
+
+					garena.disconnected(GarenaInterface.GARENA_PEER, true);
+					return;
+				}
+
+				if(address == null) {
+					//nothing more to read on this channel
+					packetBuffer.release();
+					return;
+				}
+
+				packetBuffer.length = packetBuffer.buffer.position();
+
+				if(packetBuffer.length == PacketBuffer.SIZE) {
+					//the datagram may have been truncated
+					Main.println(10, "[GInterface " + garena.id + "] PeerLoop: dropping oversized packet from " + address);
+					packetBuffer.release();
+					continue;
+				}
+
+				garena.processPeerPacket(address.getAddress(), address.getPort(), packetBuffer);
+			}
+		}
+	}
+}
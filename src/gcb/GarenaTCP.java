@@ -7,16 +7,22 @@ package gcb;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.configuration.ConversionException;
 
@@ -25,6 +31,8 @@ import org.apache.commons.configuration.ConversionException;
  * @author wizardus
  */
 public class GarenaTCP extends Thread {
+	public static double WINDOW_DECREASE = 0.7; //multiplicative decrease of the congestion window on loss
+
 	boolean terminated; //termination flag
 	int conn_id; //this virtual TCP connection identifier
 	long last_time; //last time in milliseconds that a packet was sent
@@ -38,11 +46,18 @@ public class GarenaTCP extends Thread {
 	String remote_username;
 	InetAddress remote_address;
 	int remote_port;
+	InetSocketAddress remote_socket_address; //cached for the peer send path
 
 	//not thread safe objects
-	List<GarenaTCPPacket> packets; //to transmit to Garena
-	PriorityQueue<GarenaTCPPacket> packetRetransmitQueue; //standard retransmission queue
-	HashMap<Integer, GarenaTCPPacket> out_packets; //sequence number -> packet; to transmit to GHost++
+	TCPSendRing packets; //to transmit to Garena
+	TimerWheel retransmitTimers; //sequence number -> standard retransmission deadline
+	long workerTimer; //deadline of the timer we have registered with our worker, or 0 if none
+	TCPReceiveRing out_packets; //segments received out of order; to transmit to GHost++
+
+	//locks instead of synchronized, so that virtual threads waiting here don't pin their carrier
+	ReentrantLock sendLock; //protects packets, retransmitTimers and the congestion control state
+	Condition windowOpen; //signalled when packets are acknowledged
+	ReentrantLock receiveLock; //protects out_packets
 	ByteBuffer out_buffer; //if buffered output is use, only full packets will be sent and packets will be dissected to correct information
 	String[] reservedNames;
 
@@ -53,8 +68,34 @@ public class GarenaTCP extends Thread {
 	DataInputStream in;
 	ByteBuffer buf;
 
+	//event loop mode: the local socket is non-blocking and handled by our worker instead of by this thread
+	boolean eventLoop;
+	SocketChannel channel;
+	SelectionKey key; //our registration with the worker's selector
+	ByteBuffer localReadBuffer; //data read from local that isn't a full packet yet
+	ByteBuffer localWriteBuffer; //data that the local socket couldn't take yet; in write mode
+	boolean readPaused; //whether we stopped reading because the window is full
+	boolean connecting; //whether the local socket is still connecting; writes are buffered until onConnectable
+
 	boolean localBuffered;
 
+	//data for the local socket is gathered into one write per segment; only used from our worker thread
+	TCPWriteBatch localBatch;
+	boolean gathering; //whether we are handling a segment, so writes are gathered instead of flushed
+	long flushDeadline; //time that the gathered data has to be written, if flushDelay held it back; 0 if none
+
+	//small packets from local are coalesced into one segment if coalesceDelay is set
+	//only used from the thread that reads local (our own thread, or our worker in event loop mode)
+	byte[] coalesceBuffer;
+	int coalesceLength; //number of bytes waiting in coalesceBuffer
+	int coalescePackets; //number of packets waiting in coalesceBuffer
+	long coalesceDeadline; //time that the waiting bytes have to be sent
+
+	//delayed acknowledgements; only used from our worker thread
+	int unacknowledgedSegments; //in-order segments that we received but haven't acknowledged yet
+	int delayedAckSeq; //sequence number of the last of those segments
+	long ackDeadline; //time that they have to be acknowledged, or 0 if there are none
+
 	//dynamic connection properties
 	Integer seq; //our current sequence number
 	Integer ack; //our current acknowledgement number
@@ -63,9 +104,20 @@ public class GarenaTCP extends Thread {
 	double smoothedRTT; //smoothed round trip time
 	double rttVariation; //round-trip time variation
 	int retransmissionTimeout; //current retransmission timeout; at first set to standardDelay
+	long lastRTTSample; //time of the last round trip time measurement
+
+	//congestion control (slow start and AIMD congestion avoidance, in packets)
+	double congestionWindow; //maximum number of unacknowledged packets
+	double slowStartThreshold; //window size at which we switch from slow start to congestion avoidance
+	long lastWindowReduction; //time of the last window reduction, so we only reduce once per round trip
+	long transmitCounter; //incremented for every data packet we send, including retransmissions
 
 	//static connection properties
-	int maximumBufferedPackets; //max number of packets to buffer before stopping transmission
+	int maximumBufferedPackets; //max number of packets to buffer before stopping transmission, if congestion control is off
+	boolean congestionControl; //whether the window is controlled by congestion control instead of maximumBufferedPackets
+	int initialWindow; //initial congestion window
+	int maximumWindow; //upper bound on the congestion window
+	int duplicateThreshold; //number of later packets that must be acknowledged before a packet is fast retransmitted
 	int standardDelay; //delay until packets are retransmitted
 	int soTimeout; //timeout before doing standard retransmission instead of reading
 	double srttAlpha; //alpha value, see rfc2988
@@ -76,13 +128,19 @@ public class GarenaTCP extends Thread {
 	int srttK; //no idea, but RFC2988 says it is 4
 	int maxUDPSize; //limits the size of UDP packets
 	int maxTCPSize; //limits the size of TCP packets
+	int flushDelay; //milliseconds that gathered data for the local socket may wait for more data
+	int coalesceDelay; //milliseconds that a packet from local may wait to be sent together with the next ones, or 0
+	int delayedAck; //milliseconds that an acknowledgement for an in-order segment may be delayed, or 0
+
+	TCPConnectionStats stats; //per-connection telemetry, for rcon and the statistics CSV
 
 	public GarenaTCP(GarenaInterface garena, TCPWorker worker) {
 		this.garena = garena;
 		this.worker = worker;
-		packets = new ArrayList<GarenaTCPPacket>();
-		packetRetransmitQueue = new PriorityQueue<GarenaTCPPacket>();
-		out_packets = new HashMap<Integer, GarenaTCPPacket>();
+		stats = new TCPConnectionStats();
+		sendLock = new ReentrantLock();
+		windowOpen = sendLock.newCondition();
+		receiveLock = new ReentrantLock();
 
 		terminated = false;
 		last_time = System.currentTimeMillis();
@@ -128,6 +186,10 @@ public class GarenaTCP extends Thread {
 
 		//connection properties
 		maximumBufferedPackets = GCBConfig.configuration.getInt("gcb_tcp_maxbufferedpackets", 20);
+		congestionControl = GCBConfig.configuration.getBoolean("gcb_tcp_congestion", true);
+		initialWindow = GCBConfig.configuration.getInt("gcb_tcp_initialwindow", 4);
+		maximumWindow = GCBConfig.configuration.getInt("gcb_tcp_maxwindow", 128);
+		duplicateThreshold = GCBConfig.configuration.getInt("gcb_tcp_dupthresh", 3);
 		standardDelay = GCBConfig.configuration.getInt("gcb_tcp_standarddelay", 3000);
 		soTimeout = GCBConfig.configuration.getInt("gcb_tcp_sotimeout", 1000);
 		srttAlpha = GCBConfig.configuration.getDouble("gcb_tcp_srttalpha", 0.125);
@@ -138,12 +200,19 @@ public class GarenaTCP extends Thread {
 		srttK = GCBConfig.configuration.getInt("gcb_tcp_srttk", 4);
 		maxUDPSize = GCBConfig.configuration.getInt("gcb_tcp_maxpacketsize", 512);
 		maxTCPSize = GCBConfig.configuration.getInt("gcb_tcp_maxtcpsize", 2000);
+		flushDelay = GCBConfig.configuration.getInt("gcb_tcp_flushdelay", 0);
+		coalesceDelay = GCBConfig.configuration.getInt("gcb_tcp_coalescedelay", 0);
+		delayedAck = GCBConfig.configuration.getInt("gcb_tcp_delayedack", 0);
+		int receiveWindow = GCBConfig.configuration.getInt("gcb_tcp_receivewindow", 256);
+		int receiveBytes = GCBConfig.configuration.getInt("gcb_tcp_receivebytes", 131072);
 
 		if(maxUDPSize == 0) {
 			maxUDPSize = 512;
 		}
 
 		buf = ByteBuffer.allocate(maxTCPSize);
+		localBatch = new TCPWriteBatch();
+		coalesceBuffer = new byte[maxUDPSize];
 
 		if(useBufferedOutput) {
 			out_buffer = ByteBuffer.allocate(maxTCPSize * 2);
@@ -152,10 +221,81 @@ public class GarenaTCP extends Thread {
 
 		rttMade = false;
 		retransmissionTimeout = standardDelay;
+
+		if(initialWindow < 1) {
+			initialWindow = 1;
+		}
+
+		if(maximumWindow < initialWindow) {
+			maximumWindow = initialWindow;
+		}
+
+		congestionWindow = initialWindow;
+		slowStartThreshold = maximumWindow;
+		lastWindowReduction = 0;
+
+		packets = new TCPSendRing(Math.max(maximumWindow, maximumBufferedPackets) + 1);
+		out_packets = new TCPReceiveRing(receiveWindow, receiveBytes);
+		retransmitTimers = new TimerWheel((long) Math.ceil(srttClockGranularity));
 	}
 
 	public void setWorker(TCPWorker worker) {
 		this.worker = worker;
+
+		//timers registered before we had a worker (reverse connections) have to be registered again
+		sendLock.lock();
+
+		try {
+			workerTimer = 0;
+			scheduleWorkerTimer(retransmitTimers.nextDeadline());
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	//called by our worker when the timer we registered with scheduleWorkerTimer, or the flush timer, fires
+	public void onTimer(long deadline) {
+		long currentTime = System.currentTimeMillis();
+
+		if(flushDeadline != 0 && currentTime >= flushDeadline) {
+			flushLocal();
+		}
+
+		if(eventLoop && coalesceDeadline != 0 && currentTime >= coalesceDeadline) {
+			flushCoalesced(buf);
+		}
+
+		if(ackDeadline != 0 && currentTime >= ackDeadline) {
+			sendAck(delayedAckSeq);
+		}
+
+		sendLock.lock();
+
+		try {
+			if(deadline != workerTimer) {
+				//we registered an earlier timer after this one, which already fired
+				return;
+			}
+
+			workerTimer = 0;
+			standardRetransmission();
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	//makes sure our worker wakes us up by deadline
+	//called with sendLock held
+	private void scheduleWorkerTimer(long deadline) {
+		if(deadline == Long.MAX_VALUE || worker == null) {
+			return;
+		}
+
+		//we only need a new timer if it is earlier than the one we have
+		if(workerTimer == 0 || deadline < workerTimer) {
+			workerTimer = deadline;
+			worker.schedule(conn_id, deadline);
+		}
 	}
 
 	public String getPortHost(int port) {
@@ -165,6 +305,7 @@ public class GarenaTCP extends Thread {
 	public boolean init(InetAddress remote_address, int remote_port, int remote_id, int conn_id, int destination_port, MemberInfo member) {
 		this.remote_address = remote_address;
 		this.remote_port = remote_port;
+		this.remote_socket_address = new InetSocketAddress(remote_address, remote_port);
 		this.remote_id = remote_id;
 		this.conn_id = conn_id;
 
@@ -192,13 +333,39 @@ public class GarenaTCP extends Thread {
 			return false;
 		} else {
 			//establish real TCP connection with GHost (hopefully)
+			//Nagle's algorithm is disabled: our writes are already whole W3GS packets (gathered per segment),
+			// and holding a write back until GHost acknowledges the previous one adds milliseconds of lag
 			Main.println(7, "[GarenaTCP " + conn_id + "] Connecting to GAMEHOST at " + hostname + " on port " + destination_port + " for connection " + conn_id);
 			try {
-				InetAddress local_address = InetAddress.getByName(hostname);
-				socket = new Socket(local_address, destination_port);
+				if(worker != null && worker.selector != null) {
+					//the worker serves other connections too, so it must not block: the host was resolved by the
+					// pool, and connecting is finished in onConnectable; anything written until then is buffered
+					InetAddress local_address = worker.pool.getLocalAddress(hostname);
+
+					if(local_address == null) {
+						throw new UnknownHostException(hostname);
+					}
+
+					channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					socket = channel.socket();
+					socket.setTcpNoDelay(true);
 
-				out = new DataOutputStream(socket.getOutputStream());
-				in = new DataInputStream(socket.getInputStream());
+					localReadBuffer = ByteBuffer.allocate(maxTCPSize);
+					localWriteBuffer = ByteBuffer.allocate(maxTCPSize);
+					eventLoop = true;
+					connecting = !channel.connect(new InetSocketAddress(local_address, destination_port));
+
+					//init is called from the worker thread, so it isn't blocked in select
+					key = channel.register(worker.selector, connecting ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ, this);
+				} else {
+					InetAddress local_address = InetAddress.getByName(hostname);
+					socket = new Socket(local_address, destination_port);
+					socket.setTcpNoDelay(true);
+
+					out = new DataOutputStream(socket.getOutputStream());
+					in = new DataInputStream(socket.getInputStream());
+				}
 			} catch(IOException ioe) {
 				end(true);
 
@@ -232,7 +399,10 @@ public class GarenaTCP extends Thread {
 				writeOutData(buf.array(), 0, buf.position(), true);
 			}
 
-			start();
+			if(!eventLoop) {
+				VirtualThreads.start(this);
+			}
+
 			return true;
 		}
 	}
@@ -240,6 +410,7 @@ public class GarenaTCP extends Thread {
 	public void initReverse(InetAddress remote_address, int remote_port, int remote_id, int conn_id, Socket socket) {
 		this.remote_address = remote_address;
 		this.remote_port = remote_port;
+		this.remote_socket_address = new InetSocketAddress(remote_address, remote_port);
 		this.remote_id = remote_id;
 		this.conn_id = conn_id;
 		this.socket = socket;
@@ -256,7 +427,7 @@ public class GarenaTCP extends Thread {
 		}
 
 		Main.println(5, "[GarenaTCP " + conn_id + "] Starting new reverse virtual TCP " + conn_id + " with " + remote_address + " on port " + remote_port);
-		start();
+		VirtualThreads.start(this);
 	}
 
 	//called on acknowledgement from remote Garena user
@@ -265,35 +436,62 @@ public class GarenaTCP extends Thread {
 
 		Main.println(12, "[GarenaTCP " + conn_id + "] debug@connack@" + System.currentTimeMillis() + ": received acknowledge for " + seq + ", remote ack=" + ack + " in connection " + conn_id);
 
+		//transmission number of the packet selectively acknowledged by seq, or -1 if we already had it
+		long sackedTransmit = -1;
+
 		//acknowledge packets =seq or <ack
-		synchronized(packets) {
-			for(int i = 0; i < packets.size(); i++) {
-				GarenaTCPPacket curr = packets.get(i);
-				if(curr.seq < ack || curr.seq == seq) {
-					acknowledgePacket(i);
-				}
+		sendLock.lock();
+
+		try {
+			if(seq >= ack && packets.isOutstanding(seq)) {
+				sackedTransmit = packets.getTransmitNumber(seq);
+				acknowledgePacket(seq);
 			}
+
+			acknowledgeUntil(ack);
+		} finally {
+			sendLock.unlock();
 		}
 
-		//fast retransmission: resend packets from ack to seq-1
-		if(ack < seq) {
-			synchronized(packets) {
-				for(GarenaTCPPacket curr : packets) {
-					if(!curr.fastRetransmitted && curr.seq >= ack && curr.seq <= seq - 1) {
-						curr.send_time = System.currentTimeMillis();
-						curr.fastRetransmitted = true;
-						curr.timesSent++;
+		//fast retransmission: the remote end holds seq but not the packets from ack to seq-1
+		//these may only be reordered, so we only resend a packet once duplicateThreshold packets
+		// that were sent after it have been acknowledged; duplicate acknowledgements don't count
+		if(ack < seq && sackedTransmit != -1) {
+			sendLock.lock();
+
+			try {
+				for(int curr = Math.max(ack, packets.first()); curr < seq; curr++) {
+					if(!packets.isOutstanding(curr)) {
+						continue;
+					}
+
+					if(packets.getTransmitNumber(curr) < sackedTransmit) {
+						packets.incrementSackedAfter(curr);
+					}
 
-						garena.sendTCPData(remote_address, remote_port, conn_id, lastTime(), curr.seq, this.ack, curr.data, curr.data.length, buf);
-						Main.println(12, "[GarenaTCP " + conn_id + "] debug@connack@" + System.currentTimeMillis() + ": fast retransmitting seq=" + curr.seq + " in connection " + conn_id);
+					if(packets.getSackedAfter(curr) >= duplicateThreshold) {
+						//a hole means a packet was lost, so back off (multiplicative decrease)
+						reduceWindow(false);
+
+						//if the retransmission is lost too, later acknowledgements will show it again
+						byte[] data = packets.getData(curr);
+						retransmit(curr);
+
+						garena.sendTCPData(remote_socket_address, conn_id, lastTime(), curr, this.ack, data, data.length, buf);
+						Main.println(12, "[GarenaTCP " + conn_id + "] debug@connack@" + System.currentTimeMillis() + ": fast retransmitting seq=" + curr + " in connection " + conn_id);
+						stats.fastRetransmits.incrementAndGet();
+						stats.packetsSent.incrementAndGet();
+						stats.bytesSent.addAndGet(data.length);
 
 						if(worker != null) {
 							worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_RETRANSMISSION_COUNT);
 							worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_TRANSMIT_PACKETS);
-							worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_TRANSMIT_BYTES, curr.data.length);
+							worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_TRANSMIT_BYTES, data.length);
 						}
 					}
 				}
+			} finally {
+				sendLock.unlock();
 			}
 		}
 
@@ -301,7 +499,8 @@ public class GarenaTCP extends Thread {
 	}
 
 	//called when data is received from remote Garena user
-	public void data(int seq, int ack, byte[] data, int offset, int length) {
+	//the data is at offset in buffer; the caller keeps its reference, and we retain the buffer if we store the data
+	public void data(int seq, int ack, PacketBuffer buffer, int offset, int length) {
 		if(terminated) return;
 
 		if(length > maxTCPSize) {
@@ -317,116 +516,221 @@ public class GarenaTCP extends Thread {
 			worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_RECEIVE_BYTES, length);
 		}
 
+		stats.packetsReceived.incrementAndGet();
+		stats.bytesReceived.addAndGet(length);
+
 		//acknowledge packets
-		synchronized(packets) {
-			for(int i = 0; i < packets.size(); i++) {
-				GarenaTCPPacket curr = packets.get(i);
-				if(curr.seq < ack) {
-					acknowledgePacket(i);
-				}
-			}
+		sendLock.lock();
+
+		try {
+			acknowledgeUntil(ack);
+		} finally {
+			sendLock.unlock();
 		}
 
 		standardRetransmission();
 
 		//pass data on to local server
+		//everything written to local for this segment is gathered and written at the end
+		gathering = true;
 
-		if(seq == this.ack) {
-			synchronized(this) {
-				this.ack++;
-			}
+		//only a segment that arrives in order without a gap may have its acknowledgement delayed;
+		// gaps and duplicates are acknowledged at once, so the remote end can retransmit quickly
+		boolean mayDelayAck = false;
+		boolean dropped = false;
+
+		try {
+			if(seq == this.ack) {
+				synchronized(this) {
+					this.ack++;
+				}
 
-			writeOutData(data, offset, length, false);
+				writeOutData(buffer.array, offset, length, false);
 
-			//if buffered output, extract packets from out_buffer and process
-			if(out_buffer != null) {
-				processOutData(out_buffer);
-			}
+				//send any other packets that we have stored
+				receiveLock.lock();
 
-			//send any other packets that we have stored
-			synchronized(out_packets) {
-				while(out_packets.containsKey(this.ack)) {
-					GarenaTCPPacket packet = out_packets.remove(this.ack);
+				try {
+					while(!out_packets.isEmpty() && out_packets.contains(this.ack)) {
+						int storedSeq = this.ack;
+						PacketBuffer storedBuffer = out_packets.getBuffer(storedSeq);
+						int storedOffset = out_packets.getOffset(storedSeq);
+						int storedLength = out_packets.getLength(storedSeq);
+						out_packets.remove(storedSeq);
 
-					synchronized(this) {
-						this.ack++;
-					}
+						synchronized(this) {
+							this.ack++;
+						}
 
-					Main.println(12, "[GarenaTCP " + conn_id + "] debug@data@" + System.currentTimeMillis() + ": sending stored packet to GHost++, SEQ=" + packet.seq + " in connection " + conn_id);
-					writeOutData(packet.data, false);
+						Main.println(12, "[GarenaTCP " + conn_id + "] debug@data@" + System.currentTimeMillis() + ": sending stored packet to GHost++, SEQ=" + storedSeq + " in connection " + conn_id);
+						writeOutData(storedBuffer.array, storedOffset, storedLength, false);
 
-					//if buffered output, extract packets from out_buffer and process
-					if(out_buffer != null) {
-						processOutData(out_buffer);
+						//the gathered writes may refer to the buffer until they are written
+						localBatch.hold(storedBuffer);
 					}
 
-					packet = out_packets.get(this.ack);
+					mayDelayAck = out_packets.isEmpty();
+				} finally {
+					receiveLock.unlock();
+				}
+			} else if(seq > this.ack) {
+				receiveLock.lock();
+
+				try {
+					//store the packet, we'll send it later
+					//this keeps the receive buffer instead of copying the data out of it
+					int result = out_packets.store(this.ack, seq, buffer, offset, length);
+
+					if(result == TCPReceiveRing.STORED) {
+						Main.println(12, "[GarenaTCP " + conn_id + "] debug@data@" + System.currentTimeMillis() + ": storing remote packet, SEQ=" + seq + "; our ACK=" + this.ack + " in connection " + conn_id);
+						stats.outOfOrder.incrementAndGet();
+					} else if(result == TCPReceiveRing.DUPLICATE) {
+						//we already hold this packet; the remote end resent it because our acknowledgement was lost
+						Main.println(12, "[GarenaTCP " + conn_id + "] debug@data@" + System.currentTimeMillis() + ": ignoring duplicate remote packet, SEQ=" + seq + "; our ACK=" + this.ack + " in connection " + conn_id);
+						stats.duplicates.incrementAndGet();
+					} else {
+						//too far ahead, or we hold too much already; don't acknowledge it, so the remote end sends it again
+						Main.println(12, "[GarenaTCP " + conn_id + "] debug@data@" + System.currentTimeMillis() + ": dropping remote packet beyond receive window, SEQ=" + seq + "; our ACK=" + this.ack + " in connection " + conn_id);
+						stats.receiveDrops.incrementAndGet();
+						dropped = true;
+					}
+				} finally {
+					receiveLock.unlock();
 				}
+			} else {
+				//ignore packet if seq is less than our ack
+				Main.println(12, "[GarenaTCP " + conn_id + "] debug@data@" + System.currentTimeMillis() + ": ignoring remote packet, SEQ=" + seq + "; our ACK=" + this.ack + " in connection " + conn_id);
+				stats.duplicates.incrementAndGet();
 			}
-		} else if(seq > this.ack) {
-			//store the packet, we'll send it later
-			byte[] copy = new byte[length];
-			System.arraycopy(data, offset, copy, 0, length);
-			GarenaTCPPacket packet = new GarenaTCPPacket();
-			packet.seq = seq;
-			packet.data = copy;
-
-			Main.println(12, "[GarenaTCP " + conn_id + "] debug@data@" + System.currentTimeMillis() + ": storing remote packet, SEQ=" + packet.seq + "; our ACK=" + this.ack + " in connection " + conn_id);
+		} finally {
+			gathering = false;
+			finishGathering();
+		}
 
-			synchronized(out_packets) {
-				out_packets.put(seq, packet);
+		//send conn ack, now or (with delayed acknowledgements) for every second segment or after delayedAck
+		if(dropped) {
+			return;
+		} else if(mayDelayAck && delayedAck > 0 && worker != null) {
+			unacknowledgedSegments++;
+			delayedAckSeq = seq;
+
+			if(unacknowledgedSegments >= 2) {
+				sendAck(seq);
+			} else if(ackDeadline == 0) {
+				ackDeadline = System.currentTimeMillis() + delayedAck;
+				worker.schedule(conn_id, ackDeadline);
 			}
 		} else {
-			//ignore packet if seq is less than our ack
-			Main.println(12, "[GarenaTCP " + conn_id + "] debug@data@" + System.currentTimeMillis() + ": ignoring remote packet, SEQ=" + seq + "; our ACK=" + this.ack + " in connection " + conn_id);
+			sendAck(seq);
 		}
+	}
+
+	//acknowledges seq and, cumulatively, everything before our ack
+	private void sendAck(int seq) {
+		unacknowledgedSegments = 0;
+		ackDeadline = 0;
 
-		//send conn ack
 		Main.println(12, "[GarenaTCP " + conn_id + "] debug@data@" + System.currentTimeMillis() + ": acknowledging " + seq + "; our ACK=" + this.ack + " in connection " + conn_id);
-		garena.sendTCPAck(remote_address, remote_port, conn_id, lastTime(), seq, this.ack, buf);
+		garena.sendTCPAck(remote_socket_address, conn_id, lastTime(), seq, this.ack, buf);
+		stats.acksSent.incrementAndGet();
+
+		if(worker != null) {
+			worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_ACKS_SENT);
+		}
 	}
 
-	public void processOutData(ByteBuffer buf) {
-		while(out_buffer.position() >= 4) {
-			int header = GarenaEncrypt.unsignedByte(out_buffer.get(0));
+	//buffered output: passes the complete W3GS packets in data on to processOutDataSingle
+	//packets are processed where they are, in the receive buffer; only a packet that is split
+	// over segments is copied into out_buffer, until the rest of it arrives
+	public void processOutData(byte[] data, int offset, int length) {
+		if(out_buffer.position() > 0) {
+			//complete the packet in out_buffer first
+			int missing;
 
-			//validate header
-			if(header == Constants.W3GS_HEADER_CONSTANT) {
-				int oLength = GarenaEncrypt.unsignedShort(out_buffer.getShort(2));
-				Main.println(12, "[GarenaTCP " + conn_id + "] debug@" + System.currentTimeMillis() + ": " + conn_id + " out buffered header=" + header + ", length=" + oLength);
+			if(out_buffer.position() < 4) {
+				missing = 4 - out_buffer.position();
+			} else {
+				missing = GarenaEncrypt.unsignedShort(out_buffer.getShort(2)) - out_buffer.position();
+			}
 
-				//validate length; minimum packet legnth is 4
-				if(oLength >= 4) {
-					if(out_buffer.position() >= oLength) {
-						//write the data if process returns true, else disconnect
-						processOutDataSingle(out_buffer, oLength);
+			int copied = Math.min(missing, length);
+			out_buffer.put(data, offset, copied);
+			offset += copied;
+			length -= copied;
 
-						//reset buffer: move everything so buffer starts at zero
-						int remainingBytes = out_buffer.position() - oLength;
-						System.arraycopy(out_buffer.array(), oLength, out_buffer.array(), 0, remainingBytes);
-						out_buffer.position(remainingBytes);
-					} else {
-						//not enough bytes yet
-						return;
-					}
-				} else {
-					Main.println(6, "[GarenaTCP " + conn_id + "] Received invalid length in connection " + conn_id + ", disconnecting");
-					end(true);
+			if(out_buffer.position() == 4 && length > 0) {
+				//we only had part of the header; now we know the length
+				int oLength = checkOutHeader(out_buffer.array(), 0);
+
+				if(oLength == -1) {
 					return;
 				}
-			} else {
-				Main.println(6, "[GarenaTCP " + conn_id + "] Received invalid header " + header + " in connection " + conn_id + ", disconnecting");
-				end(true);
+
+				copied = Math.min(oLength - 4, length);
+				out_buffer.put(data, offset, copied);
+				offset += copied;
+				length -= copied;
+			}
+
+			if(out_buffer.position() < 4 || checkOutHeader(out_buffer.array(), 0) != out_buffer.position()) {
+				//not enough bytes yet (or the header was invalid, in which case we have ended)
 				return;
 			}
+
+			processOutDataSingle(out_buffer.array(), 0, out_buffer.position());
+
+			//the gathered write may refer to out_buffer, which we are about to reuse
+			localBatch.detach();
+			out_buffer.clear();
+		}
+
+		while(length >= 4) {
+			int oLength = checkOutHeader(data, offset);
+
+			if(oLength == -1) {
+				return;
+			} else if(oLength > length) {
+				break;
+			}
+
+			processOutDataSingle(data, offset, oLength);
+			offset += oLength;
+			length -= oLength;
+		}
+
+		//keep the start of the next packet
+		out_buffer.put(data, offset, length);
+	}
+
+	//validates the W3GS header at offset and returns the packet length, or ends the connection and returns -1
+	private int checkOutHeader(byte[] data, int offset) {
+		int header = GarenaEncrypt.unsignedByte(data[offset]);
+
+		if(header != Constants.W3GS_HEADER_CONSTANT) {
+			Main.println(6, "[GarenaTCP " + conn_id + "] Received invalid header " + header + " in connection " + conn_id + ", disconnecting");
+			end(true);
+			return -1;
 		}
+
+		int oLength = GarenaEncrypt.unsignedByte(data[offset + 2]) | (GarenaEncrypt.unsignedByte(data[offset + 3]) << 8);
+		Main.println(12, "[GarenaTCP " + conn_id + "] debug@" + System.currentTimeMillis() + ": " + conn_id + " out buffered header=" + header + ", length=" + oLength);
+
+		//validate length; minimum packet legnth is 4, and a partial packet has to fit in out_buffer
+		if(oLength < 4 || oLength > out_buffer.capacity()) {
+			Main.println(6, "[GarenaTCP " + conn_id + "] Received invalid length in connection " + conn_id + ", disconnecting");
+			end(true);
+			return -1;
+		}
+
+		return oLength;
 	}
 
 	//processes one packet from the output buffer to local WC3 host
-	public void processOutDataSingle(ByteBuffer buf, int length) {
-		int old_position = buf.position();
+	public void processOutDataSingle(byte[] data, int offset, int length) {
+		if(GarenaEncrypt.unsignedByte(data[offset + 1]) == Constants.W3GS_REQJOIN) {
+			ByteBuffer buf = ByteBuffer.wrap(data, offset, length).slice();
+			buf.order(ByteOrder.LITTLE_ENDIAN);
 
-		if(GarenaEncrypt.unsignedByte(buf.get(1)) == Constants.W3GS_REQJOIN) {
 			if(length > 20) {
 				buf.position(4);
 				int hostCounter = buf.getInt();
@@ -475,7 +779,7 @@ public class GarenaTCP extends Thread {
 				rewrittenData.putInt(peerKey);
 				rewrittenData.put(remote_username_bytes);
 				rewrittenData.put((byte) 0);
-				rewrittenData.put(buf.array(), buf.position(), remainderLength);
+				rewrittenData.put(data, offset + buf.position(), remainderLength);
 
 				//force so that it doesn't go straight back into the output buffer
 				writeOutData(rewrittenData.array(), true);
@@ -485,10 +789,8 @@ public class GarenaTCP extends Thread {
 				return;
 			}
 		} else {
-			writeOutData(buf.array(), 0, length, true);
+			writeOutData(data, offset, length, true);
 		}
-
-		buf.position(old_position);
 	}
 
 	public void writeOutData(byte[] data, boolean force) {
@@ -497,67 +799,339 @@ public class GarenaTCP extends Thread {
 
 	public void writeOutData(byte[] data, int offset, int length, boolean force) {
 		if(out_buffer == null || force) {
-			try {
-				out.write(data, offset, length);
-			} catch(IOException ioe) {
-				if(Main.DEBUG) {
-					ioe.printStackTrace();
-				}
+			localBatch.add(data, offset, length);
+
+			if(!gathering) {
+				flushLocal();
 			}
 		} else {
-			//write to our output buffer to later extract packets
-			out_buffer.put(data, offset, length);
+			//extract packets to process them one by one
+			processOutData(data, offset, length);
+		}
+	}
+
+	//called after a segment was handled: writes what was gathered now, or after flushDelay
+	private void finishGathering() {
+		if(localBatch.isEmpty()) {
+			return;
+		}
+
+		if(flushDelay <= 0 || worker == null || localBatch.bytes() >= maxTCPSize) {
+			flushLocal();
+		} else {
+			//keep the data until more arrives or the deadline passes; the receive buffers are released now
+			localBatch.detach();
+
+			if(flushDeadline == 0) {
+				flushDeadline = System.currentTimeMillis() + flushDelay;
+				worker.schedule(conn_id, flushDeadline);
+			}
+		}
+	}
+
+	//writes the gathered data to the local socket with one write
+	private void flushLocal() {
+		flushDeadline = 0;
+
+		if(localBatch.isEmpty()) {
+			return;
+		}
+
+		int saved = localBatch.gathered() - 1;
+
+		try {
+			if(eventLoop) {
+				writeLocal(localBatch);
+			} else {
+				localBatch.writeTo(out);
+			}
+		} catch(IOException ioe) {
+			if(Main.DEBUG) {
+				ioe.printStackTrace();
+			}
+		} finally {
+			localBatch.clear();
+		}
+
+		if(worker != null) {
+			worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_LOCAL_WRITES);
+			worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_LOCAL_WRITES_SAVED, saved);
+		}
+	}
+
+	//event loop mode: writes as much as the local socket takes with one gathering write, and buffers the rest until onWritable
+	private void writeLocal(TCPWriteBatch batch) throws IOException {
+		ByteBuffer[] srcs = batch.toByteBuffers();
+
+		//only write directly if nothing is buffered, to keep the order
+		if(localWriteBuffer.position() == 0 && !connecting) {
+			channel.write(srcs, 0, batch.size());
+		}
+
+		for(int i = 0; i < batch.size(); i++) {
+			if(srcs[i].hasRemaining()) {
+				bufferLocal(srcs[i]);
+			}
+		}
+	}
+
+	//event loop mode: keeps src until the local socket can take it
+	private void bufferLocal(ByteBuffer src) {
+		if(localWriteBuffer.remaining() < src.remaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(localWriteBuffer.capacity() * 2, localWriteBuffer.position() + src.remaining()));
+			localWriteBuffer.flip();
+			larger.put(localWriteBuffer);
+			localWriteBuffer = larger;
+		}
+
+		localWriteBuffer.put(src);
+
+		//onConnectable asks for OP_WRITE itself if there is data once connected
+		if(key.isValid() && !connecting) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	//event loop mode: called by our worker when connecting to the local socket has finished or failed
+	public void onConnectable() {
+		try {
+			if(!channel.finishConnect()) {
+				return;
+			}
+		} catch(IOException ioe) {
+			Main.println(6, "[GarenaTCP " + conn_id + "] Failed to connect to GAMEHOST for connection " + conn_id + ": " + ioe.getLocalizedMessage());
+			end(true);
+
+			if(Main.DEBUG) {
+				ioe.printStackTrace();
+			}
+
+			return;
+		}
+
+		connecting = false;
+
+		if(localWriteBuffer.position() == 0) {
+			key.interestOps(SelectionKey.OP_READ);
+		} else {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	//event loop mode: called by our worker when the local socket can take more data
+	public void onWritable() {
+		try {
+			localWriteBuffer.flip();
+			channel.write(localWriteBuffer);
+			localWriteBuffer.compact();
+		} catch(IOException ioe) {
+			end(true);
+
+			if(Main.DEBUG) {
+				ioe.printStackTrace();
+			}
+
+			return;
+		}
+
+		if(localWriteBuffer.position() == 0) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	}
+
+	//event loop mode: called by our worker when the local socket has data; equivalent to run
+	public void onReadable() {
+		if(terminated) return;
+
+		try {
+			int len = channel.read(localReadBuffer);
+
+			if(len == -1) {
+				Main.println(6, "[GarenaTCP " + conn_id + "] Local host for connection " + conn_id + " disconnected");
+				end(true);
+				return;
+			}
+		} catch(IOException ioe) {
+			end(true);
+
+			if(Main.DEBUG) {
+				ioe.printStackTrace();
+			}
+
+			return;
+		}
+
+		last_received = System.currentTimeMillis();
+		localReadBuffer.flip();
+
+		if(localBuffered) {
+			//relay every complete packet
+			while(localReadBuffer.remaining() >= 4) {
+				int position = localReadBuffer.position();
+				int len = GarenaEncrypt.unsignedByte(localReadBuffer.get(position + 2)) + GarenaEncrypt.unsignedByte(localReadBuffer.get(position + 3)) * 256;
+
+				if(len < 4 || len > maxTCPSize - 4) {
+					Main.println(6, "[GarenaTCP " + conn_id + "] Read invalid packet length (len=" + len + "), terminating");
+					end(true);
+					return;
+				}
+
+				if(localReadBuffer.remaining() < len) {
+					break;
+				}
+
+				Main.println(12, "[GarenaTCP " + conn_id + "] debug@" + System.currentTimeMillis() + ": " + conn_id + " new packet from local: " + seq + " (len=" + len + ")");
+				queueLocalPacket(localReadBuffer.array(), position, len, buf);
+				localReadBuffer.position(position + len);
+			}
+
+			//whatever didn't fill a segment waits for the next read or our timer
+			if(coalesceLength > 0) {
+				if(System.currentTimeMillis() >= coalesceDeadline || worker == null) {
+					flushCoalesced(buf);
+				} else {
+					worker.schedule(conn_id, coalesceDeadline);
+				}
+			}
+		} else if(localReadBuffer.hasRemaining()) {
+			byte[] data = new byte[localReadBuffer.remaining()];
+			localReadBuffer.get(data);
+
+			Main.println(12, "[GarenaTCP " + conn_id + "] debug@" + System.currentTimeMillis() + ": " + conn_id + " new packet from local: " + seq + " (len=" + data.length + ")");
+			handleLocalPacket(data, buf);
+		}
+
+		localReadBuffer.compact();
+
+		//we can't wait for the window like run does, so stop reading until acknowledgements open it again
+		sendLock.lock();
+
+		try {
+			if(isWindowFull() && key.isValid()) {
+				readPaused = true;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			}
+		} finally {
+			sendLock.unlock();
 		}
 	}
 
 	public void standardRetransmission() {
 		//standard retransmission: resend old packets
-		synchronized(packets) {
-			GarenaTCPPacket curr;
+		sendLock.lock();
 
-			while((curr = packetRetransmitQueue.peek()) != null) {
-				if(curr.send_time < System.currentTimeMillis() - retransmissionTimeout) {
-					curr.send_time = System.currentTimeMillis();
-					curr.timesSent++;
+		try {
+			long currentTime = System.currentTimeMillis();
+			int expired = retransmitTimers.expire(currentTime);
 
-					//double the retransmission timeout
-					retransmissionTimeout *= 2;
-					smoothedRTT *= 2;
+			for(int i = 0; i < expired; i++) {
+				int curr = retransmitTimers.getExpiredId(i);
 
-					//don't fast retransmit this packet since we standard retranmsitted it
-					curr.fastRetransmitted = true;
+				//timers aren't removed when a packet is acknowledged or sent again, so skip stale ones
+				if(!packets.isOutstanding(curr) || packets.getDeadline(curr) != retransmitTimers.getExpiredDeadline(i)) {
+					continue;
+				}
 
-					garena.sendTCPData(remote_address, remote_port, conn_id, lastTime(), curr.seq, this.ack, curr.data, curr.data.length, buf);
-					Main.println(12, "[GarenaTCP " + conn_id + "] debug@" + System.currentTimeMillis() + ": standard retransmitting in connection " + conn_id);
+				//the retransmission timeout may have grown since the timer was set
+				long due = packets.getSendTime(curr) + retransmissionTimeout;
 
-					if(worker != null) {
-						worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_TRANSMIT_PACKETS);
-						worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_TRANSMIT_BYTES, curr.data.length);
-						worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_RETRANSMISSION_COUNT);
-					}
+				if(due > currentTime) {
+					schedule(curr, due);
+					continue;
+				}
 
-					//update the retransmission queue, since the time of this element changed
-					packetRetransmitQueue.poll();
-					packetRetransmitQueue.add(curr);
-				} else {
-					//since our minimum doesn't need to be retransmitted, neither does any other element
-					break;
+				//double the retransmission timeout until the next measurement (RFC2988 5.5)
+				//smoothedRTT is left alone, otherwise it takes many round trips to recover
+				retransmissionTimeout = (int) Math.min(retransmissionTimeout * 2L, (long) srttUpper);
+
+				byte[] data = packets.getData(curr);
+				retransmit(curr);
+
+				//a repeated timeout on the same packet means the network is badly congested,
+				// so restart from slow start; the first one may be spurious, since our RTO
+				// estimate is taken per packet and collapses quickly, so treat it like a loss
+				reduceWindow(packets.getTimesSent(curr) > 2);
+
+				garena.sendTCPData(remote_socket_address, conn_id, lastTime(), curr, this.ack, data, data.length, buf);
+				Main.println(12, "[GarenaTCP " + conn_id + "] debug@" + System.currentTimeMillis() + ": standard retransmitting in connection " + conn_id);
+				stats.standardRetransmits.incrementAndGet();
+				stats.packetsSent.incrementAndGet();
+				stats.bytesSent.addAndGet(data.length);
+
+				if(worker != null) {
+					worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_TRANSMIT_PACKETS);
+					worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_TRANSMIT_BYTES, data.length);
+					worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_RETRANSMISSION_COUNT);
 				}
 			}
+
+			scheduleWorkerTimer(retransmitTimers.nextDeadline());
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	//acknowledges every packet before ack (cumulative acknowledgement)
+	//called with sendLock held
+	private void acknowledgeUntil(int ack) {
+		while(!packets.isEmpty() && packets.first() < ack) {
+			acknowledgePacket(packets.first());
 		}
 	}
 
+	//records that an outstanding packet is sent again and restarts its retransmission timer
+	//called with sendLock held
+	private void retransmit(int x) {
+		long currentTime = System.currentTimeMillis();
+		packets.retransmitted(x, currentTime, transmitCounter++);
+		schedule(x, currentTime + retransmissionTimeout);
+	}
+
+	//called with sendLock held
+	private void schedule(int x, long deadline) {
+		packets.setDeadline(x, deadline);
+		retransmitTimers.schedule(x, deadline);
+		scheduleWorkerTimer(deadline);
+	}
+
 	public void acknowledgePacket(int x) {
 		//acknowledge a single packet
-		synchronized(packets) {
-			GarenaTCPPacket packet = packets.remove(x);
-			packets.notifyAll();
+		sendLock.lock();
+
+		try {
+			int timesSent = packets.getTimesSent(x);
+			long sendTime = packets.getSendTime(x);
 
-			packetRetransmitQueue.remove(packet);
+			if(!packets.acknowledge(x)) {
+				return;
+			}
 
-			if(packet.timesSent == 1) {
+			windowOpen.signalAll();
+			increaseWindow();
+
+			if(readPaused && !isWindowFull() && key.isValid()) {
+				readPaused = false;
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+
+			if(packets.isEmpty()) {
+				//every timer is stale now
+				retransmitTimers.clear();
+			}
+
+			//the histogram takes every unambiguous sample, not only the ones used for the timeout
+			if(timesSent == 1) {
+				stats.rtt.record(System.currentTimeMillis() - sendTime);
+			}
+
+			//only take one measurement per round trip, as RFC2988 assumes; with one per packet,
+			// a window of acknowledgements collapses rttVariation and causes spurious timeouts
+			boolean sampleDue = !rttMade || System.currentTimeMillis() - lastRTTSample >= smoothedRTT;
+
+			if(timesSent == 1 && sampleDue) {
 				//update standard retransmission timeout
-				double roundTripTime = System.currentTimeMillis() - packet.send_time;
+				lastRTTSample = System.currentTimeMillis();
+				double roundTripTime = lastRTTSample - sendTime;
 
 				//impose limitations on round trip time
 				if(roundTripTime < srttLower) {
@@ -582,9 +1156,102 @@ public class GarenaTCP extends Thread {
 						" setting retransmission timeout to " + retransmissionTimeout +
 						" (last rtt=" + roundTripTime + ", srtt = " + smoothedRTT + ", rttvar = " + rttVariation + ")");
 			}
+		} finally {
+			sendLock.unlock();
 		}
 	}
 
+	//called with sendLock held for each newly acknowledged packet
+	private void increaseWindow() {
+		if(congestionWindow < slowStartThreshold) {
+			//slow start: window doubles every round trip
+			congestionWindow += 1;
+		} else {
+			//congestion avoidance: window grows by one packet every round trip
+			congestionWindow += 1 / congestionWindow;
+		}
+
+		if(congestionWindow > maximumWindow) {
+			congestionWindow = maximumWindow;
+		}
+	}
+
+	//called with sendLock held when a packet is retransmitted
+	//timeout is true if we should restart from slow start, false to only back off
+	private void reduceWindow(boolean timeout) {
+		long currentTime = System.currentTimeMillis();
+
+		//all losses within one round trip belong to the same congestion event
+		//the retransmission timeout is used as the round trip bound until we have measured the RTT
+		double roundTrip = rttMade ? smoothedRTT : retransmissionTimeout;
+
+		if(currentTime - lastWindowReduction < roundTrip) {
+			return;
+		}
+
+		lastWindowReduction = currentTime;
+
+		//back off by a factor of 0.7 instead of 0.5; most of our losses are random
+		// rather than caused by queues, and halving the window on each one is too costly
+		slowStartThreshold = Math.max(packets.size() * WINDOW_DECREASE, 2);
+
+		if(timeout) {
+			congestionWindow = 1;
+		} else {
+			congestionWindow = slowStartThreshold;
+		}
+
+		Main.println(12, "[GarenaTCP " + conn_id + "] debug@" + currentTime + ": " + conn_id +
+				" reducing congestion window to " + congestionWindow + " (ssthresh=" + slowStartThreshold + ", timeout=" + timeout + ")");
+	}
+
+	//returns whether we have to wait for acknowledgements before sending another packet
+	//called with sendLock held
+	private boolean isWindowFull() {
+		if(congestionControl) {
+			return packets.size() >= (int) congestionWindow;
+		} else {
+			return maximumBufferedPackets != 0 && packets.size() > maximumBufferedPackets;
+		}
+	}
+
+	public double getCongestionWindow() {
+		if(congestionControl) {
+			return congestionWindow;
+		} else {
+			return maximumBufferedPackets;
+		}
+	}
+
+	//number of packets that were sent but not acknowledged yet
+	//read without sendLock, so this is only an estimate for other threads
+	public int getInFlightPackets() {
+		return packets.size();
+	}
+
+	//total size of the packets that were sent but not acknowledged yet; see getInFlightPackets
+	public int getInFlightBytes() {
+		return packets.bytes();
+	}
+
+	//smoothed round trip time in milliseconds, or 0 before the first measurement
+	public double getSmoothedRTT() {
+		return smoothedRTT;
+	}
+
+	public int getRetransmissionTimeout() {
+		return retransmissionTimeout;
+	}
+
+	//number of out of order segments that are stored until the ones before them arrive
+	public int getReorderDepth() {
+		return out_packets.size();
+	}
+
+	public TCPConnectionStats getStats() {
+		return stats;
+	}
+
 	public void run() {
 		byte[] rbuf = new byte[maxTCPSize];
 		ByteBuffer lbuf = ByteBuffer.allocate(maxTCPSize);
@@ -594,8 +1261,26 @@ public class GarenaTCP extends Thread {
 				int len;
 
 				if(localBuffered) {
+					int headerStart = 0;
+
+					if(coalesceLength > 0) {
+						//we are holding back packets; only wait for the next one until they are due
+						int first = readLocalByte(coalesceDeadline);
+
+						if(first == -2) {
+							flushCoalesced(lbuf);
+							continue;
+						} else if(first == -1) {
+							flushCoalesced(lbuf);
+							throw new EOFException();
+						}
+
+						rbuf[0] = (byte) first;
+						headerStart = 1;
+					}
+
 					//read packet header, which includes packet length
-					in.readFully(rbuf, 0, 4);
+					in.readFully(rbuf, headerStart, 4 - headerStart);
 					len = GarenaEncrypt.unsignedByte(rbuf[2]) + GarenaEncrypt.unsignedByte(rbuf[3]) * 256;
 
 					if(len >= 4 && len <= maxTCPSize - 4) {
@@ -617,11 +1302,16 @@ public class GarenaTCP extends Thread {
 				}
 
 				last_received = System.currentTimeMillis();
-				byte[] data = new byte[len];
-				System.arraycopy(rbuf, 0, data, 0, len);
 
 				Main.println(12, "[GarenaTCP " + conn_id + "] debug@" + System.currentTimeMillis() + ": " + conn_id + " new packet from local: " + seq + " (len=" + len + ")");
-				handleLocalPacket(data, lbuf);
+
+				if(localBuffered) {
+					queueLocalPacket(rbuf, 0, len, lbuf);
+				} else {
+					byte[] data = new byte[len];
+					System.arraycopy(rbuf, 0, data, 0, len);
+					handleLocalPacket(data, lbuf);
+				}
 			} catch(IOException ioe) {
 				end(true);
 
@@ -634,19 +1324,94 @@ public class GarenaTCP extends Thread {
 		}
 	}
 
+	//thread mode: reads one byte from local, waiting until deadline at most
+	//returns -2 if nothing arrived in time
+	private int readLocalByte(long deadline) throws IOException {
+		long remaining = deadline - System.currentTimeMillis();
+
+		if(remaining <= 0 && in.available() == 0) {
+			return -2;
+		}
+
+		socket.setSoTimeout((int) Math.max(remaining, 1));
+
+		try {
+			return in.read();
+		} catch(SocketTimeoutException ste) {
+			return -2;
+		} finally {
+			socket.setSoTimeout(0);
+		}
+	}
+
+	//sends a complete packet from local, or holds it back to send it together with the next ones
+	//with coalesceDelay, consecutive packets are packed into one segment of up to maxUDPSize bytes,
+	// waiting at most coalesceDelay for the segment to fill up; the remote end reads a stream,
+	// so it doesn't matter where one segment ends
+	private void queueLocalPacket(byte[] data, int offset, int length, ByteBuffer lbuf) {
+		if(coalesceDelay <= 0 || length >= maxUDPSize) {
+			flushCoalesced(lbuf);
+
+			byte[] copy = new byte[length];
+			System.arraycopy(data, offset, copy, 0, length);
+			handleLocalPacket(copy, lbuf);
+			return;
+		}
+
+		if(coalesceLength + length > maxUDPSize) {
+			flushCoalesced(lbuf);
+		}
+
+		if(coalesceLength == 0) {
+			coalesceDeadline = System.currentTimeMillis() + coalesceDelay;
+		}
+
+		System.arraycopy(data, offset, coalesceBuffer, coalesceLength, length);
+		coalesceLength += length;
+		coalescePackets++;
+
+		if(coalesceLength == maxUDPSize) {
+			flushCoalesced(lbuf);
+		}
+	}
+
+	//sends the packets that queueLocalPacket held back
+	private void flushCoalesced(ByteBuffer lbuf) {
+		if(coalesceLength == 0) {
+			return;
+		}
+
+		byte[] data = new byte[coalesceLength];
+		System.arraycopy(coalesceBuffer, 0, data, 0, coalesceLength);
+
+		if(worker != null) {
+			worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_COALESCE_SAVED, coalescePackets - 1);
+		}
+
+		coalesceLength = 0;
+		coalescePackets = 0;
+		coalesceDeadline = 0;
+
+		handleLocalPacket(data, lbuf);
+	}
+
 	private void handleLocalPacket(byte[] data, ByteBuffer lbuf) {
 		for(int i = 0; i < data.length; i += maxUDPSize) {
 			int currentLength = Math.min(maxUDPSize, data.length - i);
-			byte[] currentData = new byte[currentLength];
-			System.arraycopy(data, i, currentData, 0, currentLength);
+			byte[] currentData = data;
 
-			//save packet in case it doesn't go through
-			GarenaTCPPacket packet = new GarenaTCPPacket();
-			packet.seq = seq;
-			packet.data = currentData;
+			//the segment is kept until it is acknowledged, so it needs its own array unless it is all of data
+			if(currentLength != data.length) {
+				currentData = new byte[currentLength];
+				System.arraycopy(data, i, currentData, 0, currentLength);
+			}
+
+			sendLock.lock();
 
-			synchronized(packets) {
-				while(maximumBufferedPackets != 0 && packets.size() > maximumBufferedPackets) { //let's wait a while before sending more
+			try {
+				//in event loop mode we can't wait here, since acknowledgements are handled by the same thread
+				//onReadable stops reading instead, so the window only overshoots by one read
+				while(!eventLoop && isWindowFull()) { //let's wait a while before sending more
 					Main.println(12, "[GarenaTCP " + conn_id + "] debug@" + System.currentTimeMillis() + ": " + conn_id + " waiting because of " + packets.size() + " packets");
 
 					if(terminated) {
@@ -654,22 +1419,25 @@ public class GarenaTCP extends Thread {
 						return;
 					}
 
+					//retransmissions are driven by the worker's timer wheel, so we only wait here
+					//sending from this thread would share buf with the worker's acknowledgements
 					try {
-						packets.wait(100);
+						windowOpen.await(100, TimeUnit.MILLISECONDS);
 					} catch(InterruptedException e) {}
-
-					//continue to standard retransmit packets
-					standardRetransmission();
 				}
 
-				packets.add(packet);
-
-				//also update the packet retransmit queue here
-				packetRetransmitQueue.add(packet);
+				//save packet in case it doesn't go through
+				long currentTime = System.currentTimeMillis();
+				packets.add(seq, currentData, currentTime, transmitCounter++);
+				schedule(seq, currentTime + retransmissionTimeout);
+			} finally {
+				sendLock.unlock();
 			}
 
 			//don't use buf here so there isn't thread problems
-			garena.sendTCPData(remote_address, remote_port, conn_id, lastTime(), seq, ack, currentData, currentLength, lbuf);
+			garena.sendTCPData(remote_socket_address, conn_id, lastTime(), seq, ack, currentData, currentLength, lbuf);
+			stats.packetsSent.incrementAndGet();
+			stats.bytesSent.addAndGet(currentLength);
 
 			if(worker != null) {
 				worker.pool.incrementStatistics(GarenaTCPPool.STATISTIC_TRANSMIT_PACKETS);
@@ -713,10 +1481,19 @@ public class GarenaTCP extends Thread {
 		}
 
 		//send four times because that's what the standard client does
-		garena.sendTCPFin(remote_address, remote_port, conn_id, last_time, tbuf);
-		garena.sendTCPFin(remote_address, remote_port, conn_id, last_time, tbuf);
-		garena.sendTCPFin(remote_address, remote_port, conn_id, last_time, tbuf);
-		garena.sendTCPFin(remote_address, remote_port, conn_id, last_time, tbuf);
+		garena.sendTCPFin(remote_socket_address, conn_id, last_time, tbuf);
+		garena.sendTCPFin(remote_socket_address, conn_id, last_time, tbuf);
+		garena.sendTCPFin(remote_socket_address, conn_id, last_time, tbuf);
+		garena.sendTCPFin(remote_socket_address, conn_id, last_time, tbuf);
+
+		//give back the receive buffers of packets we stored
+		receiveLock.lock();
+
+		try {
+			out_packets.clear();
+		} finally {
+			receiveLock.unlock();
+		}
 
 		if(removeWorker && worker != null) {
 			//remove connection from GarenaInterface map
@@ -744,25 +1521,3 @@ public class GarenaTCP extends Thread {
 		}
 	}
 }
-
-class GarenaTCPPacket implements Comparable<GarenaTCPPacket> {
-	int seq; //this packet's sequence number
-	long send_time; //time that this packet was last sent (including both retransmission)
-	byte[] data;
-	boolean fastRetransmitted; //only fast retransmit packets once
-	int timesSent; //how many times this packet was sent, including both retransmission
-
-	public GarenaTCPPacket() {
-		fastRetransmitted = false;
-		timesSent = 1;
-
-		send_time = System.currentTimeMillis();
-	}
-
-	public int compareTo(GarenaTCPPacket packet) {
-		long this_time = send_time + (fastRetransmitted ? 100000 : 0);
-		long that_time = packet.send_time + (packet.fastRetransmitted ? 100000 : 0);
-
-		return (int) (this_time - that_time);
-	}
-}
\ No newline at end of file
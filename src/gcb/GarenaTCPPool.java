@@ -1,27 +1,37 @@
 package gcb;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.configuration.ConversionException;
+
 public class GarenaTCPPool extends Thread {
 	Map<Integer, GarenaTCP> tcpConnections;
-	Map<Integer, TCPWorker> workerMap;
+	TCPRoutingTable routes; //connection ID -> worker, read without locking by the peer receive threads
 	List<TCPWorker> workers;
-	Queue<TCPPacket> queue;
+	TCPPacketQueue queue; //connection initiations from the peer receive threads; only this thread polls
+	TCPPacket packet; //packet being dispatched, reused; only used from this thread
 	boolean exitingNicely = false;
 
 	int workerNextId = 0; //next ID to use for a worker thread
 
 	//configuration
-	int connectionsPerWorker;
+	int maximumWorkers; //number of worker threads to allocate at most
+	long workerIdleTime; //milliseconds that a worker without connections waits before it exits, or 0 to never exit
+	boolean eventLoop; //whether workers also handle the local sockets, instead of one thread per connection
+	String statsFile; //file to append per-connection statistics to, or empty to not write them
+	Map<String, InetAddress> localAddresses; //event loop mode: gcb_tcp_host hostnames, resolved once; see resolveLocalHosts
 
 	//statistics
 	public static int STATISTIC_TRANSMIT_PACKETS = 0; //count of outgoing GarenaTCP packets
@@ -29,34 +39,107 @@ public class GarenaTCPPool extends Thread {
 	public static int STATISTIC_RECEIVE_PACKETS = 2; //count of incoming GarenaTCP packets
 	public static int STATISTIC_RECEIVE_BYTES = 3; //count of incoming GarenaTCP bytes
 	public static int STATISTIC_RETRANSMISSION_COUNT = 4; //retransmission packet count
+	public static int STATISTIC_LOCAL_WRITES = 5; //count of writes to local sockets
+	public static int STATISTIC_LOCAL_WRITES_SAVED = 6; //count of local writes avoided by gathering W3GS packets
+	public static int STATISTIC_COALESCE_SAVED = 7; //count of outgoing GarenaTCP packets avoided by coalescing local packets
+	public static int STATISTIC_ACKS_SENT = 8; //count of outgoing GarenaTCP acknowledgements
 	AtomicLong[] statistics = null;
 
 	public GarenaTCPPool() {
 		tcpConnections = new HashMap<Integer, GarenaTCP>();
-		workerMap = new HashMap<Integer, TCPWorker>();
+		routes = new TCPRoutingTable();
 		workers = new ArrayList<TCPWorker>();
-		queue = new LinkedList<TCPPacket>();
+		queue = TCPPacketQueue.fromConfiguration();
+		packet = new TCPPacket(null, null, 0, null);
 
+		//standard retransmission is scheduled by each TCPWorker for its own connections
 		synchronized(Main.TIMER) {
-			Main.TIMER.schedule(new RetransmitTask(), 20000, (int) Math.ceil(GCBConfig.configuration.getDouble("gcb_tcp_srttg", 20)));
 			Main.TIMER.schedule(new CleanTask(), 1000, 300000); //clean TCP connections every five minutes
 		}
 
 		//configuration
-		connectionsPerWorker = GCBConfig.configuration.getInt("gcb_tcp_connectionsperworker", 5);
+		maximumWorkers = GCBConfig.configuration.getInt("gcb_tcp_workers", 0);
+		workerIdleTime = GCBConfig.configuration.getInt("gcb_tcp_workeridle", 60) * 1000L;
+
+		if(maximumWorkers <= 0) {
+			maximumWorkers = Runtime.getRuntime().availableProcessors();
+		}
+		eventLoop = GCBConfig.configuration.getBoolean("gcb_tcp_eventloop", false);
+
+		if(eventLoop) {
+			resolveLocalHosts();
+		}
+
+		statsFile = GCBConfig.configuration.getString("gcb_tcp_statscsv", "");
+
+		if(!statsFile.isEmpty()) {
+			int statsInterval = Math.max(1, GCBConfig.configuration.getInt("gcb_tcp_statsinterval", 60));
+
+			synchronized(Main.TIMER) {
+				Main.TIMER.schedule(new StatsTask(), statsInterval * 1000L, statsInterval * 1000L);
+			}
+		}
 
 		if(GCBConfig.configuration.getBoolean("gcb_tcp_enablestats", false)) {
-			statistics = new AtomicLong[5];
+			statistics = new AtomicLong[9];
 			for(int i = 0; i < statistics.length; i++) {
 				statistics[i] = new AtomicLong();
 			}
 		}
 	}
 
-	public void enqueue(GarenaInterface garena, InetAddress address, int port, byte[] bytes) {
-		synchronized(queue) {
-			queue.add(new TCPPacket(garena, address, port, bytes));
-			queue.notifyAll();
+	//event loop mode: a worker serves many connections, so it must not block on a lookup for each new one
+	//the hosts come from the configuration, so they are resolved here, before any worker starts
+	private void resolveLocalHosts() {
+		localAddresses = new HashMap<String, InetAddress>();
+
+		try {
+			String[] local_ports_str = GCBConfig.configuration.getStringArray("gcb_tcp_host");
+
+			for(int i = 0; i < local_ports_str.length; i++) {
+				String hostname = local_ports_str[i].split(":")[0];
+
+				if(localAddresses.containsKey(hostname)) {
+					continue;
+				}
+
+				try {
+					localAddresses.put(hostname, InetAddress.getByName(hostname));
+				} catch(UnknownHostException e) {
+					Main.println(1, "[GarenaTCPPool] Error: unable to resolve gcb_tcp_host " + hostname + "; connections to it will fail");
+				}
+			}
+		} catch(ConversionException e) {
+			//GarenaTCP reports this for every connection
+		}
+	}
+
+	//returns the address that hostname from gcb_tcp_host was resolved to, or null if it couldn't be
+	public InetAddress getLocalAddress(String hostname) {
+		return localAddresses.get(hostname);
+	}
+
+	//called from the peer receive threads
+	//CONN packets of established connections go straight to their worker's queue; only connection
+	// initiations, which need a worker to be chosen, go through this thread
+	//this takes over the caller's reference to buffer
+	public void enqueue(GarenaInterface garena, InetAddress address, int port, PacketBuffer buffer) {
+		if(buffer.array[0] == 0x0D) {
+			TCPWorker worker = null;
+
+			if(buffer.length >= 20) {
+				int conn_id = GarenaEncrypt.byteArrayToIntLittle(buffer.array, 4);
+				worker = routes.get(conn_id);
+			}
+
+			//packets for unknown connections are dropped, like the worker would
+			if(worker != null) {
+				worker.enqueue(garena, address, port, buffer);
+			} else {
+				buffer.release();
+			}
+		} else {
+			queue.offer(garena, address, port, buffer);
 		}
 	}
 
@@ -70,31 +153,63 @@ public class GarenaTCPPool extends Thread {
 			tcpConnections.put(conn_id, tcp);
 		}
 
-		synchronized(workerMap) {
-			workerMap.put(conn_id, worker);
-		}
+		routes.put(conn_id, worker);
 	}
 
 	public void registerConnection(int conn_id, GarenaTCP tcp) {
-		//find a worker to allocate this connection initiation to
-		TCPWorker assigned_worker = null;
+		TCPWorker assigned_worker;
 
+		//register while holding workers, so that the worker can't retire in between
 		synchronized(workers) {
-			for(TCPWorker worker : workers) {
-				if(worker.count() < connectionsPerWorker) {
-					worker.registerConnection(conn_id, tcp);
-					assigned_worker = worker;
-					break;
-				}
+			assigned_worker = chooseWorker();
+			assigned_worker.registerConnection(conn_id, tcp);
+		}
+
+		registerConnection(conn_id, assigned_worker, tcp);
+	}
+
+	//returns the worker that a new connection should go to, allocating one if needed
+	//workers are only allocated while every worker already has a connection, up to maximumWorkers;
+	// after that the connection goes to the worker with the least data in flight, since
+	// that is what costs a worker time, rather than the number of (mostly idle) connections
+	//call with workers held
+	private TCPWorker chooseWorker() {
+		TCPWorker best = null;
+		long bestBytes = 0;
+		int bestConnections = 0;
+
+		for(TCPWorker worker : workers) {
+			long bytes = worker.getInFlightBytes();
+			//queued packets count as well: they include connection initiations that the worker doesn't count yet,
+			// and otherwise are data that keeps it busy
+			int connections = worker.count() + worker.queue.size();
+
+			if(best == null || bytes < bestBytes || (bytes == bestBytes && connections < bestConnections)) {
+				best = worker;
+				bestBytes = bytes;
+				bestConnections = connections;
 			}
 		}
 
-		if(assigned_worker == null) {
-			assigned_worker = allocateWorker();
-			assigned_worker.registerConnection(conn_id, tcp);
+		if(best == null || (bestConnections > 0 && workers.size() < maximumWorkers)) {
+			best = allocateWorker();
 		}
 
-		registerConnection(conn_id, assigned_worker, tcp);
+		return best;
+	}
+
+	//called by an idle worker; returns true if it was removed and should exit
+	public boolean retireWorker(TCPWorker worker) {
+		synchronized(workers) {
+			//chooseWorker may have given it a connection since it checked
+			if(worker.count() > 0 || !worker.queue.isEmpty()) {
+				return false;
+			}
+
+			workers.remove(worker);
+			Main.println(4, "[GarenaTCPPool] Worker thread " + worker.id + " exiting after being idle (count=" + workers.size() + ")");
+			return true;
+		}
 	}
 
 	public int count() {
@@ -113,12 +228,12 @@ public class GarenaTCPPool extends Thread {
 			//TODO
 		}
 
-		synchronized(workerMap) {
-			workerMap.remove(conn_id);
-		}
+		routes.remove(conn_id);
 	}
 
 	public void cleanTCPConnections() {
+		List<GarenaTCP> timedOut = new ArrayList<GarenaTCP>();
+
 		synchronized(tcpConnections) {
 			Iterator<Integer> connectionIterator = tcpConnections.keySet().iterator();
 
@@ -128,16 +243,16 @@ public class GarenaTCPPool extends Thread {
 
 				if(connection.isTimeout()) {
 					Main.println(1, "[GarenaTCPPool] Disconnecting connection " + x + " due to timeout.");
-
-					//using end(true) would remove the connection, but
-					// since we're currently iterating over it that
-					// would cause a concurrent modification exception
-					//so instead we remove it from here
-					connection.end(false);
-					connectionIterator.remove();
+					timedOut.add(connection);
 				}
 			}
 		}
+
+		//end(true) removes the connection from here, from its worker and from routes, so that the worker
+		// stops counting it for placement and can retire; it can't be called while iterating over tcpConnections
+		for(GarenaTCP connection : timedOut) {
+			connection.end(true);
+		}
 	}
 
 	public void exitNicely() {
@@ -146,7 +261,7 @@ public class GarenaTCPPool extends Thread {
 
 	public TCPWorker allocateWorker() {
 		TCPWorker worker = new TCPWorker(this, workerNextId++);
-		worker.start();
+		VirtualThreads.start(worker);
 
 		synchronized(workers) {
 			workers.add(worker);
@@ -168,224 +283,189 @@ public class GarenaTCPPool extends Thread {
 		}
 	}
 
-	public boolean isStatisticsEnabled() {
-		return statistics != null;
-	}
-
-	public Long getStatistics(int type) {
-		if(statistics != null) {
-			return statistics[type].get();
-		} else {
-			return null;
-		}
-	}
-
-	public void run() {
-		while(true) {
-			TCPPacket packet = null;
+	//average congestion window over all connections, in packets
+	public double getAverageWindow() {
+		synchronized(tcpConnections) {
+			if(tcpConnections.isEmpty()) {
+				return 0;
+			}
 
-			synchronized(queue) {
-				while(queue.isEmpty()) {
-					try {
-						queue.wait();
-					} catch(InterruptedException ie) {}
-				}
+			double sum = 0;
 
-				packet = queue.poll();
+			for(GarenaTCP connection : tcpConnections.values()) {
+				sum += connection.getCongestionWindow();
 			}
 
-			if(packet.bytes[0] == 0x0B && !exitingNicely) {
-				int conn_id = GarenaEncrypt.byteArrayToIntLittle(packet.bytes, 8);
+			return sum / tcpConnections.size();
+		}
+	}
 
-				if(tcpConnections.containsKey(conn_id)) {
-					//TODO: currently we just reject this connection silently, which would cause timeout
-					continue;
-				}
+	//largest congestion window over all connections, in packets
+	public double getMaximumWindow() {
+		synchronized(tcpConnections) {
+			double max = 0;
 
-				//find a worker to allocate this connection initiation to
-				boolean assigned = false;
+			for(GarenaTCP connection : tcpConnections.values()) {
+				max = Math.max(max, connection.getCongestionWindow());
+			}
 
-				synchronized(workers) {
-					for(TCPWorker worker : workers) {
-						if(worker.count() < connectionsPerWorker) {
-							worker.enqueue(packet);
-							assigned = true;
-							break;
-						}
-					}
-				}
+			return max;
+		}
+	}
 
-				if(!assigned) {
-					allocateWorker().enqueue(packet);
-				}
-			} else if(packet.bytes[0] == 0x0D) {
-				int conn_id = GarenaEncrypt.byteArrayToIntLittle(packet.bytes, 4);
+	//packets waiting in the dispatch queue and in the worker queues
+	public int getQueueDepth() {
+		int depth = queue.size();
 
-				synchronized(workerMap) {
-					if(workerMap.containsKey(conn_id)) {
-						workerMap.get(conn_id).enqueue(packet);
-					}
-				}
+		synchronized(workers) {
+			for(TCPWorker worker : workers) {
+				depth += worker.queue.size();
 			}
 		}
+
+		return depth;
 	}
 
-	class RetransmitTask extends TimerTask {
-		public void run() {
-			synchronized(tcpConnections) {
-				Iterator<GarenaTCP> connection_it = tcpConnections.values().iterator();
+	//highest depth that the dispatch queue or any worker queue reached
+	public long getQueueHighWater() {
+		long highWater = queue.getHighWater();
 
-				while(connection_it.hasNext()) {
-					connection_it.next().standardRetransmission();
-				}
+		synchronized(workers) {
+			for(TCPWorker worker : workers) {
+				highWater = Math.max(highWater, worker.queue.getHighWater());
 			}
 		}
-	}
 
-	class CleanTask extends TimerTask {
-		public void run() {
-			cleanTCPConnections();
-		}
+		return highWater;
 	}
-}
 
-class TCPWorker extends Thread {
-	GarenaTCPPool pool;
-	int id;
-	Map<Integer, GarenaTCP> tcpConnections;
-	Queue<TCPPacket> queue;
+	//packets dropped because the dispatch queue or a worker queue was full
+	public long getQueueDrops() {
+		long drops = queue.getDrops();
 
-	public TCPWorker(GarenaTCPPool pool, int id) {
-		this.pool = pool;
-		this.id = id;
-		tcpConnections = new HashMap<Integer, GarenaTCP>();
-		queue = new LinkedList<TCPPacket>();
-	}
-
-	public void enqueue(TCPPacket packet) {
-		synchronized(queue) {
-			queue.add(packet);
-			queue.notifyAll();
+		synchronized(workers) {
+			for(TCPWorker worker : workers) {
+				drops += worker.queue.getDrops();
+			}
 		}
+
+		return drops;
 	}
 
-	public void registerConnection(int conn_id, GarenaTCP tcp) {
-		synchronized(tcpConnections) {
-			tcpConnections.put(conn_id, tcp);
-		}
+	//one entry per worker: connections, data in flight and queued packets
+	public String getWorkerStatus() {
+		StringBuilder status = new StringBuilder();
 
-		tcp.setWorker(this);
-	}
+		synchronized(workers) {
+			for(TCPWorker worker : workers) {
+				status.append(String.format(" %d: %d conn, %d p / %d KB in flight, %d queued;",
+						worker.id,
+						worker.count(),
+						worker.getInFlightPackets(),
+						worker.getInFlightBytes() / 1024,
+						worker.queue.size()));
+			}
+		}
 
-	public int count() {
-		return tcpConnections.size();
+		return status.toString();
 	}
 
-	public GarenaTCPPool getPool() {
-		return pool;
-	}
+	//one line per connection with its round trip times, window and losses, for rcon
+	//filter is a connection ID or part of a username (lowercase), or null for every connection
+	public List<String> getConnectionStats(String filter) {
+		List<String> lines = new ArrayList<String>();
 
-	public void removeTCPConnection(int conn_id) {
 		synchronized(tcpConnections) {
-			tcpConnections.remove(conn_id);
+			for(GarenaTCP connection : tcpConnections.values()) {
+				if(filter == null || Integer.toString(connection.conn_id).equals(filter) ||
+						(connection.remote_username != null && connection.remote_username.toLowerCase().contains(filter))) {
+					lines.add(connection.getStats().format(connection));
+				}
+			}
 		}
 
-		pool.removeTCPConnection(conn_id);
+		return lines;
 	}
 
-	public void run() {
-		while(true) {
-			TCPPacket packet = null;
+	//appends a row for every connection to statsFile
+	public void writeConnectionStats() {
+		File file = new File(statsFile);
+		boolean writeHeader = !file.exists() || file.length() == 0;
+		long time = System.currentTimeMillis();
+		PrintWriter out = null;
 
-			synchronized(queue) {
-				while(queue.isEmpty()) {
-					try {
-						queue.wait();
-					} catch(InterruptedException ie) {}
-				}
+		try {
+			out = new PrintWriter(new FileWriter(file, true));
 
-				packet = queue.poll();
+			if(writeHeader) {
+				out.println(TCPConnectionStats.CSV_HEADER);
 			}
 
-			if(packet.bytes[0] == 0x0B) {
-				int remote_id = GarenaEncrypt.byteArrayToIntLittle(packet.bytes, 4);
-				int conn_id = GarenaEncrypt.byteArrayToIntLittle(packet.bytes, 8);
-				int destination = GarenaEncrypt.byteArrayToIntLittle(packet.bytes, 16); //little endian short followed by two zeroes
-
-				MemberInfo member = packet.garena.memberFromID(remote_id);
-				if(member != null) {
-					Main.println(4, "[TCPWorker " + id + "] Starting TCP connection with " +  member.username);
-				} else {
-					Main.println(4, "[TCPWorker " + id + "] Starting TCP connection with " +  remote_id);
+			synchronized(tcpConnections) {
+				for(GarenaTCP connection : tcpConnections.values()) {
+					out.println(connection.getStats().toCSV(time, connection));
 				}
+			}
+		} catch(IOException ioe) {
+			Main.println(1, "[GarenaTCPPool] Failed to write connection statistics to " + statsFile + ": " + ioe.getLocalizedMessage());
+		} finally {
+			if(out != null) {
+				out.close();
+			}
+		}
+	}
 
-				GarenaTCP tcp_connection = new GarenaTCP(packet.garena, this);
-				tcp_connection.init(packet.address, packet.port, remote_id, conn_id, destination, member);
-
-				synchronized(tcpConnections) {
-					if(tcpConnections.containsKey(conn_id)) {
-						Main.println(1, "[Worker " + id + "] Warning: duplicate TCP connection ID; overwriting previous");
-						tcpConnections.get(conn_id).end(true);
-					}
-
-					tcpConnections.put(conn_id, tcp_connection);
-				}
+	public boolean isStatisticsEnabled() {
+		return statistics != null;
+	}
 
-				pool.registerConnection(conn_id, this, tcp_connection);
-			} else if(packet.bytes[0] == 0x0D) {
-				int conn_id = GarenaEncrypt.byteArrayToIntLittle(packet.bytes, 4);
+	public Long getStatistics(int type) {
+		if(statistics != null) {
+			return statistics[type].get();
+		} else {
+			return null;
+		}
+	}
 
-				if(conn_id == 0) {
-					continue; //happens sometimes
-				}
+	public void run() {
+		queue.setConsumer(Thread.currentThread());
 
-				GarenaTCP tcp_connection;
+		while(true) {
+			while(!queue.poll(packet)) {
+				queue.await(0);
+			}
 
-				synchronized(tcpConnections) {
-					tcp_connection = tcpConnections.get(conn_id);
-				}
+			byte[] bytes = packet.buffer.array;
 
-				int remote_id = GarenaEncrypt.byteArrayToIntLittle(packet.bytes, 8);
+			if(bytes[0] == 0x0B && !exitingNicely && packet.buffer.length >= 20) {
+				int conn_id = GarenaEncrypt.byteArrayToIntLittle(bytes, 8);
 
-				if(tcp_connection == null || tcp_connection.remote_id != remote_id) {
-					Main.println(11, "[TCPWorker " + id + "] Warning: CONN packet received from user " +
-							remote_id + " at " + packet.address +
-							", but connection " + conn_id + " not started with user");
+				if(tcpConnections.containsKey(conn_id)) {
+					//TODO: currently we just reject this connection silently, which would cause timeout
+					packet.buffer.release();
 					continue;
 				}
 
-				int seq = GarenaEncrypt.byteArrayToIntLittle(packet.bytes, 12);
-				int ack = GarenaEncrypt.byteArrayToIntLittle(packet.bytes, 16);
-
-				//CONN ACK, CONN DATA, or CONN FIN?
-
-				if(packet.bytes[1] == 0x14) { //CONN DATA
-					tcp_connection.data(seq, ack, packet.bytes, 20, packet.bytes.length - 20);
-				} else if(packet.bytes[1] == 0x0E) { //CONN ACK
-					tcp_connection.connAck(seq, ack);
-				} else if(packet.bytes[1] == 0x01) {
-					Main.println(4, "[TCPWorker " + id + "] User requested termination on connection " + conn_id);
-					// tcp_connections will be updated by GarenaTCP
-					// so just call end
-					tcp_connection.end(true);
-				} else {
-					Main.println(11, "[TCPWorker " + id + "] PeerLoop: unknown CONN type received: " + packet.bytes[1]);
+				//find a worker to allocate this connection initiation to
+				//the worker's queue takes over the buffer
+				synchronized(workers) {
+					chooseWorker().enqueue(packet);
 				}
+			} else {
+				packet.buffer.release();
 			}
 		}
 	}
-}
 
-class TCPPacket {
-	GarenaInterface garena;
-	InetAddress address;
-	int port;
-	byte[] bytes;
-
-	public TCPPacket(GarenaInterface garena,InetAddress address, int port, byte[] bytes) {
-		this.garena = garena;
-		this.address = address;
-		this.port = port;
-		this.bytes = bytes;
+	class CleanTask extends TimerTask {
+		public void run() {
+			cleanTCPConnections();
+		}
+	}
+
+	class StatsTask extends TimerTask {
+		public void run() {
+			writeConnectionStats();
+		}
 	}
 }
@@ -55,7 +55,7 @@ public class GarenaThread extends Thread {
 		
 		if(!garenaInterface.isExiting()) {
 			GarenaThread thread = new GarenaThread(garenaInterface, wc3Interface, type);
-			thread.start();
+			VirtualThreads.start(thread);
 		}
 	}
 }
@@ -0,0 +1,106 @@
+package gcb;
+
+public class LatencyHistogram {
+	//histogram of millisecond values with a fixed relative precision, in the style of HdrHistogram
+	//values below 2 * SUB_BUCKETS have their own bucket; above that, every power of two is split
+	// into SUB_BUCKETS buckets, so a bucket is never wider than 1/SUB_BUCKETS of its values (about 6%)
+	//recording is constant time and never allocates
+
+	static int SUB_BUCKET_BITS = 4;
+	static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static long MAX_VALUE = 1L << 24; //larger values are recorded as this (about 4.6 hours)
+
+	long[] counts;
+	long totalCount;
+	long totalValue;
+	long maxValue;
+
+	public LatencyHistogram() {
+		counts = new long[index(MAX_VALUE) + 1];
+	}
+
+	public synchronized void record(long value) {
+		if(value < 0) {
+			value = 0;
+		} else if(value > MAX_VALUE) {
+			value = MAX_VALUE;
+		}
+
+		counts[index(value)]++;
+		totalCount++;
+		totalValue += value;
+
+		if(value > maxValue) {
+			maxValue = value;
+		}
+	}
+
+	//returns the value below which the given percentage of the recorded values lie, or 0 if there are none
+	//the result is the highest value of its bucket, capped at the largest recorded value
+	public synchronized long getPercentile(double percentile) {
+		if(totalCount == 0) {
+			return 0;
+		}
+
+		long target = (long) Math.ceil(totalCount * percentile / 100);
+
+		if(target < 1) {
+			target = 1;
+		}
+
+		long seen = 0;
+
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+
+			if(seen >= target) {
+				return Math.min(highestValue(i), maxValue);
+			}
+		}
+
+		return maxValue;
+	}
+
+	public synchronized long getCount() {
+		return totalCount;
+	}
+
+	public synchronized long getMax() {
+		return maxValue;
+	}
+
+	public synchronized double getMean() {
+		return totalCount == 0 ? 0 : (double) totalValue / totalCount;
+	}
+
+	public synchronized void reset() {
+		for(int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+
+		totalCount = 0;
+		totalValue = 0;
+		maxValue = 0;
+	}
+
+	static int index(long value) {
+		if(value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		//shift so that the value has SUB_BUCKET_BITS + 1 significant bits
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (value >> shift);
+	}
+
+	//highest value that is recorded in bucket index
+	static long highestValue(int index) {
+		if(index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index - shift * SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
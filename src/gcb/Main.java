@@ -83,6 +83,7 @@ public class Main {
 	
 	ConnectWorkerPool connectPool;
 	GarenaTCPPool tcpPool;
+	GarenaPeerEngine peerEngine;
 
 	//determine what will be loaded, what won't be loaded
 	boolean loadBot;
@@ -165,6 +166,14 @@ public class Main {
 			tcpPool.start();
 		}
 		
+		if(peerEngine == null && loadPL && GCBConfig.configuration.getBoolean("gcb_peer_nio", false)) {
+			try {
+				peerEngine = new GarenaPeerEngine(GCBConfig.configuration.getInt("gcb_peer_iothreads", 2));
+			} catch(IOException ioe) {
+				println(1, "[Main] Error: failed to start peer engine, falling back to peer threads: " + ioe.getLocalizedMessage());
+			}
+		}
+		
 		if(loadWC3 && !restart) {
 			//setup wc3 broadcast reader
 			wc3i = new WC3Interface(garenaConnections);
@@ -185,6 +194,7 @@ public class Main {
 					GarenaInterface garena = new GarenaInterface(plugins, i);
 					garena.registerListener(reconnect);
 					garena.setGarenaTCPPool(tcpPool);
+					garena.setPeerEngine(peerEngine);
 					
 					synchronized(garenaConnections) {
 						garenaConnections.put(i, garena);
@@ -206,7 +216,7 @@ public class Main {
 		if(loadWC3 && !restart) {
 			//start receiving and broadcasting wc3 packets
 			GarenaThread wc3_thread = new GarenaThread(null, wc3i, GarenaThread.WC3_BROADCAST);
-			wc3_thread.start();
+			VirtualThreads.start(wc3_thread);
 		}
 		
 		if(loadRcon && !restart) {
@@ -258,7 +268,7 @@ public class Main {
 		
 		if(!this.gspThreads.containsKey(garena.id)) {
 			GarenaThread gsp_thread = new GarenaThread(garena, null, GarenaThread.GSP_LOOP);
-			gsp_thread.start();
+			VirtualThreads.start(gsp_thread);
 			this.gspThreads.put(garena.id, gsp_thread);
 		}
 
@@ -274,10 +284,13 @@ public class Main {
 	public boolean initPeer(GarenaInterface garena, boolean restart) {
 		if(!garena.initPeer()) return false;
 		
-		if(loadPL && !this.peerThreads.containsKey(garena.id)) {
+		if(loadPL && peerEngine != null) {
+			//the new peer channel must be registered after every initPeer
+			peerEngine.register(garena);
+		} else if(loadPL && !this.peerThreads.containsKey(garena.id)) {
 			//startup GP2PP system
 			GarenaThread pl = new GarenaThread(garena, wc3i, GarenaThread.PEER_LOOP);
-			pl.start();
+			VirtualThreads.start(pl);
 			this.peerThreads.put(garena.id, pl);
 		}
 		
@@ -340,7 +353,7 @@ public class Main {
 
 		if(!this.gcrpThreads.containsKey(garena.id)) {
 			GarenaThread gcrp_thread = new GarenaThread(garena, wc3i, GarenaThread.GCRP_LOOP);
-			gcrp_thread.start();
+			VirtualThreads.start(gcrp_thread);
 			this.gcrpThreads.put(garena.id, gcrp_thread);
 		}
 		
@@ -508,6 +521,7 @@ public class Main {
 		}
 		
 		DEBUG = GCBConfig.configuration.getBoolean("gcb_debug", false);
+		VirtualThreads.init();
 
 		main.initPlugins();
 		if(!main.initGarenaAll(false)) {
@@ -523,6 +537,11 @@ public class Main {
 		main.newLogLoop();
 	}
 
+	//whether messages at level are printed; check this before building an expensive message
+	public static boolean isLogging(int level) {
+		return (logLevel & (1 << level)) != 0;
+	}
+
 	public static synchronized void println(int level, String str) {
 		//don't output this message if we're not at the correct log level
 		//note that here, level is the base (2^level is the flag value)
@@ -614,17 +633,71 @@ public class Main {
 			if(uptime >= 60) uptimeString += upMinutes + "m";
 			uptimeString += upSeconds + "s";
 			
+			//the thread MXBean only counts platform threads
+			String threadString = threads + "";
+			
+			if(VirtualThreads.isEnabled()) {
+				threadString = threads + " platform/" + VirtualThreads.getVirtualCount() + " virtual";
+			}
+			
 			String statusString = String.format(
-					"[STATUS] connected: %d; mem: %d KB; threads: %d; rooms/users: %d/%d; up: %s",
+					"[STATUS] connected: %d; mem: %d KB; threads: %s; rooms/users: %d/%d; up: %s",
 					numTCPConnections,
 					memory,
-					threads,
+					threadString,
 					rooms,
 					users,
 					uptimeString);
 			
 			Main.println(0, statusString);
 			
+			//per-room peer send statistics
+			if(GCBConfig.configuration.getBoolean("gcb_peer_enablestats", false)) {
+				StringBuilder peerStatusString = new StringBuilder("[STATUS PEER] sent per room:");
+				
+				synchronized(garenaConnections) {
+					Iterator<GarenaInterface> it = garenaConnections.values().iterator();
+					
+					while(it.hasNext()) {
+						GarenaInterface garena = it.next();
+						peerStatusString.append(String.format(" %d: %d p / %d KB;",
+								garena.id,
+								garena.getPeerPacketsSent(),
+								garena.getPeerBytesSent() / 1024));
+					}
+				}
+				
+				Main.println(0, peerStatusString.toString());
+			}
+			
+			//SEARCHGAME replies
+			if(wc3i != null && wc3i.searchThrottle != null) {
+				SearchThrottle throttle = wc3i.searchThrottle;
+				Main.println(0, String.format(
+						"[STATUS SEARCH] answered: %d; suppressed duplicate/limited: %d/%d; sources: %d",
+						throttle.getAnswered(),
+						throttle.getSuppressedDuplicate(),
+						throttle.getSuppressedLimited(),
+						throttle.getSourceCount()));
+			}
+			
+			//WC3 broadcasts to the rooms
+			if(wc3i != null) {
+				Main.println(0, String.format(
+						"[STATUS FANOUT] most queued in a room: %d; dropped: %d",
+						wc3i.fanout.getMaxQueued(),
+						wc3i.fanout.getDropped()));
+			}
+			
+			//W3GS_REFRESHGAME instead of GAMEINFO
+			if(wc3i != null && wc3i.broadcastFilterRefresh) {
+				Main.println(0, String.format(
+						"[STATUS REFRESH] compared: %d; refreshes sent: %d; bytes saved per member: %d",
+						wc3i.refreshCompared.get(),
+						wc3i.refreshSent.get(),
+						wc3i.refreshBytesSaved.get()));
+			}
+			
 			//TCP-specific stats
 			if(tcpPool.isStatisticsEnabled()) {
                 long transmitPackets = tcpPool.getStatistics(GarenaTCPPool.STATISTIC_TRANSMIT_PACKETS);
@@ -632,20 +705,35 @@ public class Main {
                 long receivePackets = tcpPool.getStatistics(GarenaTCPPool.STATISTIC_RECEIVE_PACKETS);
                 long receiveBytes = tcpPool.getStatistics(GarenaTCPPool.STATISTIC_RECEIVE_BYTES);
                 long retransmissionCount = tcpPool.getStatistics(GarenaTCPPool.STATISTIC_RETRANSMISSION_COUNT);
+                long localWrites = tcpPool.getStatistics(GarenaTCPPool.STATISTIC_LOCAL_WRITES);
+                long localWritesSaved = tcpPool.getStatistics(GarenaTCPPool.STATISTIC_LOCAL_WRITES_SAVED);
+                long coalesceSaved = tcpPool.getStatistics(GarenaTCPPool.STATISTIC_COALESCE_SAVED);
+                long acksSent = tcpPool.getStatistics(GarenaTCPPool.STATISTIC_ACKS_SENT);
                 
                 double retransmitPercent = (double) retransmissionCount / transmitPackets;
                 double receiveBytesPerPacket = (double) receiveBytes / receivePackets;
                 double transmitBytesPerPacket = (double) transmitBytes / transmitPackets;
                 double packetsPerSecond = (double) (transmitPackets + receivePackets) / uptime;
+                double ackRatio = (double) acksSent / receivePackets;
                 
                 String tcpStatusString = String.format(
-                        "[STATUS TCP] r%%: %.2f; rx b/p: %.1f; tx b/p: %.1f; pps: %.1f",
+                        "[STATUS TCP] r%%: %.2f; rx b/p: %.1f; tx b/p: %.1f; pps: %.1f; ack/data: %.2f; cwnd avg/max: %.1f/%.1f; queue depth/high/drops: %d/%d/%d; local writes/saved: %d/%d; coalesced: %d",
                         retransmitPercent,
                         receiveBytesPerPacket,
                         transmitBytesPerPacket,
-                        packetsPerSecond);
+                        packetsPerSecond,
+                        ackRatio,
+                        tcpPool.getAverageWindow(),
+                        tcpPool.getMaximumWindow(),
+                        tcpPool.getQueueDepth(),
+                        tcpPool.getQueueHighWater(),
+                        tcpPool.getQueueDrops(),
+                        localWrites,
+                        localWritesSaved,
+                        coalesceSaved);
                 
                 Main.println(0, tcpStatusString);
+                Main.println(0, "[STATUS WORKERS]" + tcpPool.getWorkerStatus());
 			}
 		}
 	}
@@ -5,6 +5,7 @@
 package gcb;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 /**
  *
@@ -32,4 +33,43 @@ public class MemberInfo {
 	public InetAddress correctIP = null;
 	
 	boolean commandline = false;
+	
+	//cached socket addresses for the peer send path, so that sending to a member doesn't allocate
+	//they are rebuilt whenever the corresponding address or port changes
+	private InetSocketAddress externalSocketAddress;
+	private InetSocketAddress internalSocketAddress;
+	private InetSocketAddress correctSocketAddress;
+	
+	public InetSocketAddress getExternalSocketAddress() {
+		InetSocketAddress address = externalSocketAddress;
+		
+		if(address == null || address.getAddress() != externalIP || address.getPort() != externalPort) {
+			address = new InetSocketAddress(externalIP, externalPort);
+			externalSocketAddress = address;
+		}
+		
+		return address;
+	}
+	
+	public InetSocketAddress getInternalSocketAddress() {
+		InetSocketAddress address = internalSocketAddress;
+		
+		if(address == null || address.getAddress() != internalIP || address.getPort() != internalPort) {
+			address = new InetSocketAddress(internalIP, internalPort);
+			internalSocketAddress = address;
+		}
+		
+		return address;
+	}
+	
+	public InetSocketAddress getCorrectSocketAddress() {
+		InetSocketAddress address = correctSocketAddress;
+		
+		if(address == null || address.getAddress() != correctIP || address.getPort() != correctPort) {
+			address = new InetSocketAddress(correctIP, correctPort);
+			correctSocketAddress = address;
+		}
+		
+		return address;
+	}
 }
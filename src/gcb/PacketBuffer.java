@@ -0,0 +1,90 @@
+package gcb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PacketBuffer {
+	//pooled, reference counted buffer for datagrams received on the peer socket
+	//the receive thread reads a datagram straight into a buffer from the pool and passes the
+	// buffer on instead of copying it; whoever keeps it (a queue, an out of order segment) holds
+	// a reference and releases it when done, and the last release puts the buffer back in the pool
+	//a buffer that is never released is simply garbage collected, so a missed release only costs an allocation
+	//buffers are on the heap, not direct: decryption, the GP2PP parsers and GarenaTCP all work on the
+	// byte array, so a direct buffer would have to be copied into one for every datagram anyway
+
+	//size of each buffer; larger datagrams are dropped by the receive loops
+	//GP2PP packets are much smaller than this, since CONN data is limited to gcb_tcp_maxtcpsize
+	public static int SIZE = 4096;
+
+	//maximum number of free buffers to keep
+	public static int MAX_POOLED = 1024;
+
+	static PacketBuffer[] pool = new PacketBuffer[MAX_POOLED];
+	static int pooled = 0; //protected by pool
+
+	byte[] array;
+	ByteBuffer buffer; //wraps array, for channels
+	int length; //length of the datagram in array
+	AtomicInteger references;
+
+	private PacketBuffer() {
+		array = new byte[SIZE];
+		buffer = ByteBuffer.wrap(array);
+		references = new AtomicInteger();
+	}
+
+	//returns a buffer with one reference, held by the caller
+	public static PacketBuffer get() {
+		PacketBuffer packetBuffer = null;
+
+		synchronized(pool) {
+			if(pooled > 0) {
+				packetBuffer = pool[--pooled];
+				pool[pooled] = null;
+			}
+		}
+
+		if(packetBuffer == null) {
+			packetBuffer = new PacketBuffer();
+		}
+
+		packetBuffer.length = 0;
+		packetBuffer.buffer.clear();
+		packetBuffer.references.set(1);
+		return packetBuffer;
+	}
+
+	public void retain() {
+		references.incrementAndGet();
+	}
+
+	//drops a reference; the buffer must not be used by the caller afterwards
+	public void release() {
+		int remaining = references.decrementAndGet();
+
+		if(remaining == 0) {
+			synchronized(pool) {
+				if(pooled < pool.length) {
+					pool[pooled++] = this;
+				}
+			}
+		} else if(remaining < 0) {
+			Main.println(1, "[PacketBuffer] Warning: buffer released too often");
+		}
+	}
+
+	public byte[] getArray() {
+		return array;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	//copies the datagram into a new array, for code that keeps it after the buffer is released
+	public byte[] copy() {
+		byte[] bytes = new byte[length];
+		System.arraycopy(array, 0, bytes, 0, length);
+		return bytes;
+	}
+}
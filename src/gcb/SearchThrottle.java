@@ -0,0 +1,101 @@
+package gcb;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SearchThrottle {
+	//decides whether a SEARCHGAME gets an answer, per source address and port
+	//a source that was answered with the same games (the same gamesContentVersion) within memoTime already has
+	// them, so it is not answered again; otherwise every answer takes a token from the source's bucket,
+	// which holds up to burst tokens and gets one back every interval milliseconds
+	//sources are kept in least recently used order and the oldest is forgotten beyond maxSources, so
+	// spoofed sources can't make us hold more than that
+	//this class is thread safe; every peer loop uses the same instance
+
+	public static final int ANSWER = 0;
+	public static final int DUPLICATE = 1; //already answered with these games
+	public static final int LIMITED = 2; //out of tokens
+
+	int interval; //milliseconds per token, or 0 to disable the token bucket
+	int burst;
+	int memoTime; //milliseconds, or 0 to disable the duplicate check
+	int maxSources;
+
+	LinkedHashMap<InetSocketAddress, Source> sources; //protected by this
+
+	AtomicLong answered = new AtomicLong();
+	AtomicLong suppressedDuplicate = new AtomicLong();
+	AtomicLong suppressedLimited = new AtomicLong();
+
+	class Source {
+		double tokens;
+		long lastRefill;
+		int lastVersion;
+		long lastAnswer; //0 if never answered
+	}
+
+	public SearchThrottle(int interval, int burst, int memoTime, final int maxSources) {
+		this.interval = interval;
+		this.burst = Math.max(1, burst);
+		this.memoTime = memoTime;
+		this.maxSources = maxSources;
+
+		sources = new LinkedHashMap<InetSocketAddress, Source>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Source> eldest) {
+				return size() > maxSources;
+			}
+		};
+	}
+
+	//whether to answer a SEARCHGAME from source, which would be answered with the games at version
+	public synchronized int check(InetSocketAddress source, int version, long now) {
+		Source state = sources.get(source);
+
+		if(state == null) {
+			state = new Source();
+			state.tokens = burst;
+			state.lastRefill = now;
+			sources.put(source, state);
+		}
+
+		if(memoTime > 0 && state.lastAnswer != 0 && state.lastVersion == version && now - state.lastAnswer < memoTime) {
+			suppressedDuplicate.incrementAndGet();
+			return DUPLICATE;
+		}
+
+		if(interval > 0) {
+			state.tokens = Math.min(burst, state.tokens + (double) (now - state.lastRefill) / interval);
+			state.lastRefill = now;
+
+			if(state.tokens < 1) {
+				suppressedLimited.incrementAndGet();
+				return LIMITED;
+			}
+
+			state.tokens--;
+		}
+
+		state.lastVersion = version;
+		state.lastAnswer = now;
+		answered.incrementAndGet();
+		return ANSWER;
+	}
+
+	public long getAnswered() {
+		return answered.get();
+	}
+
+	public long getSuppressedDuplicate() {
+		return suppressedDuplicate.get();
+	}
+
+	public long getSuppressedLimited() {
+		return suppressedLimited.get();
+	}
+
+	public synchronized int getSourceCount() {
+		return sources.size();
+	}
+}
@@ -0,0 +1,75 @@
+package gcb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TCPConnectionStats {
+	//per-connection counters of a GarenaTCP connection, for finding out why a single player lags
+	//the connection updates these on its send, acknowledge, retransmit and receive paths, which can
+	// run on two threads in thread mode; rcon and the CSV task read them while they change
+
+	public static String CSV_HEADER = "time,conn_id,user,srtt,rto,rtt_p50,rtt_p90,rtt_p99,rtt_max,cwnd,in_flight_packets,in_flight_bytes," +
+			"reorder_depth,sent_packets,sent_bytes,received_packets,received_bytes,fast_retransmits,standard_retransmits," +
+			"out_of_order,duplicates,receive_drops,acks_sent";
+
+	long created;
+
+	LatencyHistogram rtt; //round trip time of every packet that was acknowledged without being retransmitted
+
+	AtomicLong packetsSent = new AtomicLong(); //data packets, including retransmissions
+	AtomicLong bytesSent = new AtomicLong();
+	AtomicLong packetsReceived = new AtomicLong(); //data packets
+	AtomicLong bytesReceived = new AtomicLong();
+	AtomicLong fastRetransmits = new AtomicLong();
+	AtomicLong standardRetransmits = new AtomicLong();
+	AtomicLong outOfOrder = new AtomicLong(); //packets that were stored because one before them was missing
+	AtomicLong duplicates = new AtomicLong(); //packets that we already had
+	AtomicLong receiveDrops = new AtomicLong(); //out of order packets that didn't fit in the receive window
+	AtomicLong acksSent = new AtomicLong();
+
+	public TCPConnectionStats() {
+		created = System.currentTimeMillis();
+		rtt = new LatencyHistogram();
+	}
+
+	//one line for rcon
+	public String format(GarenaTCP tcp) {
+		return String.format("%d %s: srtt %.0f ms, rto %d ms, rtt p50/p90/p99/max %d/%d/%d/%d ms; cwnd %.1f, in flight %d p / %d B, reorder %d; " +
+				"tx %d p / %d KB, rx %d p / %d KB; rtx fast/std %d/%d, ooo %d, dup %d, drop %d, acks %d; up %ds",
+				tcp.conn_id,
+				tcp.remote_username,
+				tcp.getSmoothedRTT(),
+				tcp.getRetransmissionTimeout(),
+				rtt.getPercentile(50),
+				rtt.getPercentile(90),
+				rtt.getPercentile(99),
+				rtt.getMax(),
+				tcp.getCongestionWindow(),
+				tcp.getInFlightPackets(),
+				tcp.getInFlightBytes(),
+				tcp.getReorderDepth(),
+				packetsSent.get(),
+				bytesSent.get() / 1024,
+				packetsReceived.get(),
+				bytesReceived.get() / 1024,
+				fastRetransmits.get(),
+				standardRetransmits.get(),
+				outOfOrder.get(),
+				duplicates.get(),
+				receiveDrops.get(),
+				acksSent.get(),
+				(System.currentTimeMillis() - created) / 1000);
+	}
+
+	//one row matching CSV_HEADER
+	public String toCSV(long time, GarenaTCP tcp) {
+		String user = tcp.remote_username == null ? "" : tcp.remote_username.replace(",", "_").replace("\"", "_");
+
+		return time + "," + tcp.conn_id + "," + user + "," +
+				String.format("%.1f", tcp.getSmoothedRTT()) + "," + tcp.getRetransmissionTimeout() + "," +
+				rtt.getPercentile(50) + "," + rtt.getPercentile(90) + "," + rtt.getPercentile(99) + "," + rtt.getMax() + "," +
+				String.format("%.1f", tcp.getCongestionWindow()) + "," + tcp.getInFlightPackets() + "," + tcp.getInFlightBytes() + "," +
+				tcp.getReorderDepth() + "," + packetsSent.get() + "," + bytesSent.get() + "," + packetsReceived.get() + "," + bytesReceived.get() + "," +
+				fastRetransmits.get() + "," + standardRetransmits.get() + "," + outOfOrder.get() + "," + duplicates.get() + "," +
+				receiveDrops.get() + "," + acksSent.get();
+	}
+}
@@ -0,0 +1,17 @@
+package gcb;
+
+import java.net.InetAddress;
+
+class TCPPacket {
+	GarenaInterface garena;
+	InetAddress address;
+	int port;
+	PacketBuffer buffer; //the datagram, with the reference that was passed along with it
+
+	public TCPPacket(GarenaInterface garena,InetAddress address, int port, PacketBuffer buffer) {
+		this.garena = garena;
+		this.address = address;
+		this.port = port;
+		this.buffer = buffer;
+	}
+}
@@ -0,0 +1,211 @@
+package gcb;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class TCPPacketQueue {
+	//bounded lock-free queue of GP2PP TCP packets, for GarenaTCPPool and TCPWorker dispatch
+	//this is a ring of preallocated TCPPacket slots with a sequence number per slot (Vyukov's
+	// bounded queue), so offering and polling don't lock or allocate
+	//any number of threads may offer; one consumer thread polls and waits
+	//when the ring is full, offer either drops the oldest packet or blocks until there is room
+	//the queue holds the reference to each packet's buffer that offer was given; poll passes it on
+
+	public static int POLICY_DROP = 0; //drop the oldest packet when full
+	public static int POLICY_BLOCK = 1; //wait for the consumer when full
+
+	TCPPacket[] slots;
+	AtomicLongArray sequences; //per slot: equal to the position if free for that position, position + 1 if filled
+	int mask; //capacity - 1, which is a power of two
+	int policy;
+
+	AtomicLong head; //next position to poll
+	AtomicLong tail; //next position to offer
+
+	//consumer waiting, see await
+	volatile Thread consumer;
+	volatile boolean consumerWaiting;
+
+	//metrics
+	AtomicLong drops;
+	AtomicLong highWater;
+
+	public TCPPacketQueue(int capacity, int policy) {
+		int realCapacity = 2;
+
+		while(realCapacity < capacity) {
+			realCapacity <<= 1;
+		}
+
+		slots = new TCPPacket[realCapacity];
+		sequences = new AtomicLongArray(realCapacity);
+
+		for(int i = 0; i < realCapacity; i++) {
+			slots[i] = new TCPPacket(null, null, 0, null);
+			sequences.set(i, i);
+		}
+
+		mask = realCapacity - 1;
+		this.policy = policy;
+
+		head = new AtomicLong();
+		tail = new AtomicLong();
+		drops = new AtomicLong();
+		highWater = new AtomicLong();
+	}
+
+	//creates a queue using the gcb_tcp_queuesize and gcb_tcp_queuepolicy configuration
+	public static TCPPacketQueue fromConfiguration() {
+		int capacity = GCBConfig.configuration.getInt("gcb_tcp_queuesize", 4096);
+		String policy = GCBConfig.configuration.getString("gcb_tcp_queuepolicy", "drop");
+
+		if(policy.equalsIgnoreCase("block")) {
+			return new TCPPacketQueue(capacity, POLICY_BLOCK);
+		} else {
+			return new TCPPacketQueue(capacity, POLICY_DROP);
+		}
+	}
+
+	public void offer(GarenaInterface garena, InetAddress address, int port, PacketBuffer buffer) {
+		long position;
+
+		while(true) {
+			position = tail.get();
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - position;
+
+			if(difference == 0) {
+				if(tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+			} else if(difference < 0) {
+				//full
+				if(policy == POLICY_BLOCK) {
+					wakeConsumer();
+					LockSupport.parkNanos(50000);
+				} else if(poll(null)) {
+					drops.incrementAndGet();
+				}
+			}
+
+			//otherwise another producer took this position; try the next one
+		}
+
+		int index = (int) (position & mask);
+		TCPPacket slot = slots[index];
+		slot.garena = garena;
+		slot.address = address;
+		slot.port = port;
+		slot.buffer = buffer;
+		sequences.lazySet(index, position + 1);
+
+		long depth = position + 1 - head.get();
+		long currentHighWater;
+
+		while(depth > (currentHighWater = highWater.get())) {
+			if(highWater.compareAndSet(currentHighWater, depth)) {
+				break;
+			}
+		}
+
+		if(consumerWaiting) {
+			wakeConsumer();
+		}
+	}
+
+	public void offer(TCPPacket packet) {
+		offer(packet.garena, packet.address, packet.port, packet.buffer);
+	}
+
+	//copies the oldest packet into target and removes it; returns false if the queue is empty
+	//target may be null to discard the packet, which releases its buffer
+	public boolean poll(TCPPacket target) {
+		long position;
+
+		while(true) {
+			position = head.get();
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - (position + 1);
+
+			if(difference == 0) {
+				//producers dropping the oldest packet also poll, so this has to be a CAS
+				if(head.compareAndSet(position, position + 1)) {
+					break;
+				}
+			} else if(difference < 0) {
+				return false;
+			}
+		}
+
+		int index = (int) (position & mask);
+		TCPPacket slot = slots[index];
+
+		if(target != null) {
+			target.garena = slot.garena;
+			target.address = slot.address;
+			target.port = slot.port;
+			target.buffer = slot.buffer;
+		} else {
+			slot.buffer.release();
+		}
+
+		slot.garena = null;
+		slot.address = null;
+		slot.buffer = null;
+		sequences.lazySet(index, position + mask + 1);
+		return true;
+	}
+
+	//sets the thread that calls await; call from the consumer thread before it first checks the queue,
+	// so that wakeConsumer can't be missed
+	public void setConsumer(Thread thread) {
+		consumer = thread;
+	}
+
+	//called by the consumer: waits until a packet is offered, wakeConsumer is called or timeout
+	// milliseconds pass (0 to wait without timeout); may also return early for no reason
+	public void await(long timeout) {
+		consumerWaiting = true;
+
+		//check again after announcing that we wait, so that an offer can't slip in between
+		if(isEmpty()) {
+			if(timeout <= 0) {
+				LockSupport.park(this);
+			} else {
+				LockSupport.parkNanos(this, timeout * 1000000L);
+			}
+		}
+
+		consumerWaiting = false;
+	}
+
+	public void wakeConsumer() {
+		Thread thread = consumer;
+
+		if(thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	public boolean isEmpty() {
+		return size() <= 0;
+	}
+
+	public int size() {
+		return (int) Math.max(tail.get() - head.get(), 0);
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	public long getDrops() {
+		return drops.get();
+	}
+
+	public long getHighWater() {
+		return highWater.get();
+	}
+}
@@ -0,0 +1,116 @@
+package gcb;
+
+public class TCPReceiveRing {
+	//out of order segments of a GarenaTCP connection, waiting for a missing segment before them
+	//segments are stored in parallel arrays at (seq & mask), for sequence numbers less than capacity
+	// ahead of the next one that we expect; with the limit on stored bytes, this bounds what a remote
+	// end can make us hold, so segments beyond either limit are dropped and have to be sent again
+	//every stored segment keeps a reference to its receive buffer until it is removed or cleared,
+	// so the byte limit is charged with the whole buffer, not just the segment in it
+	//this class is not thread safe; GarenaTCP protects it with receiveLock
+
+	public static final int STORED = 0;
+	public static final int DUPLICATE = 1; //we already hold this segment
+	public static final int DROPPED = 2; //too far ahead, or storing it would exceed the byte limit
+
+	int mask; //capacity - 1, which is a power of two
+	int maxBytes;
+	int size; //number of stored segments
+	int bytes; //total capacity of the buffers held by stored segments
+
+	PacketBuffer[] buffers;
+	int[] offsets;
+	int[] lengths;
+
+	public TCPReceiveRing(int capacity, int maxBytes) {
+		int realCapacity = 16;
+
+		while(realCapacity < capacity) {
+			realCapacity <<= 1;
+		}
+
+		mask = realCapacity - 1;
+		this.maxBytes = maxBytes;
+		buffers = new PacketBuffer[realCapacity];
+		offsets = new int[realCapacity];
+		lengths = new int[realCapacity];
+	}
+
+	//stores segment seq, which is after ack (the next sequence number that we expect)
+	//retains the buffer if the segment is stored
+	public int store(int ack, int seq, PacketBuffer buffer, int offset, int length) {
+		if(seq - ack > mask) {
+			return DROPPED;
+		}
+
+		int index = seq & mask;
+
+		if(buffers[index] != null) {
+			return DUPLICATE;
+		} else if(bytes + buffer.array.length > maxBytes) {
+			return DROPPED;
+		}
+
+		buffer.retain();
+		buffers[index] = buffer;
+		offsets[index] = offset;
+		lengths[index] = length;
+		size++;
+		bytes += buffer.array.length;
+		return STORED;
+	}
+
+	//whether segment seq is stored; seq must be less than capacity ahead of our ack
+	public boolean contains(int seq) {
+		return buffers[seq & mask] != null;
+	}
+
+	public PacketBuffer getBuffer(int seq) {
+		return buffers[seq & mask];
+	}
+
+	public int getOffset(int seq) {
+		return offsets[seq & mask];
+	}
+
+	public int getLength(int seq) {
+		return lengths[seq & mask];
+	}
+
+	//removes segment seq without releasing its buffer; the caller takes over the reference
+	public void remove(int seq) {
+		int index = seq & mask;
+		size--;
+		bytes -= buffers[index].array.length;
+		buffers[index] = null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int bytes() {
+		return bytes;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	//releases the buffers of all stored segments
+	public void clear() {
+		if(size == 0) {
+			return;
+		}
+
+		for(int i = 0; i < buffers.length; i++) {
+			if(buffers[i] != null) {
+				buffers[i].release();
+				buffers[i] = null;
+			}
+		}
+
+		size = 0;
+		bytes = 0;
+	}
+}
@@ -0,0 +1,110 @@
+package gcb;
+
+public class TCPRoutingTable {
+	//maps connection IDs to the TCPWorker that owns the connection
+	//this is read for every CONN packet by the peer receive threads, so lookups don't lock:
+	// the table is an open addressing hash table (linear probing, primitive keys) that is
+	// copied on every change and published through a volatile field
+	//connections are added and removed far less often than packets arrive, so copying is cheap overall
+
+	volatile Table table;
+	int size; //protected by this
+
+	public TCPRoutingTable() {
+		table = new Table(16);
+	}
+
+	//returns the worker for conn_id, or null if there is none; doesn't lock
+	public TCPWorker get(int conn_id) {
+		Table current = table;
+		int index = hash(conn_id) & current.mask;
+
+		while(true) {
+			TCPWorker worker = current.workers[index];
+
+			if(worker == null) {
+				return null;
+			} else if(current.keys[index] == conn_id) {
+				return worker;
+			}
+
+			index = (index + 1) & current.mask;
+		}
+	}
+
+	public synchronized void put(int conn_id, TCPWorker worker) {
+		Table current = table;
+		boolean replacing = get(conn_id) != null;
+		int newSize = replacing ? size : size + 1;
+
+		//keep the load factor at most one half, so probes stay short
+		int capacity = current.keys.length;
+
+		while(newSize * 2 > capacity) {
+			capacity <<= 1;
+		}
+
+		Table copy = new Table(capacity);
+		copy.insertAll(current, conn_id, false);
+		copy.insert(conn_id, worker);
+
+		size = newSize;
+		table = copy;
+	}
+
+	public synchronized void remove(int conn_id) {
+		if(get(conn_id) == null) {
+			return;
+		}
+
+		//linear probing can't just clear a slot, so rebuild without conn_id
+		Table current = table;
+		Table copy = new Table(current.keys.length);
+		copy.insertAll(current, conn_id, true);
+
+		size--;
+		table = copy;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	static int hash(int key) {
+		//connection IDs may be sequential, so spread them over the table
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	static class Table {
+		int[] keys;
+		TCPWorker[] workers; //null if the slot is free
+		int mask;
+
+		Table(int capacity) {
+			keys = new int[capacity];
+			workers = new TCPWorker[capacity];
+			mask = capacity - 1;
+		}
+
+		void insert(int key, TCPWorker worker) {
+			int index = hash(key) & mask;
+
+			while(workers[index] != null && keys[index] != key) {
+				index = (index + 1) & mask;
+			}
+
+			keys[index] = key;
+			workers[index] = worker;
+		}
+
+		//copies the entries of other, skipping skipKey if skip is set
+		void insertAll(Table other, int skipKey, boolean skip) {
+			for(int i = 0; i < other.keys.length; i++) {
+				if(other.workers[i] != null && !(skip && other.keys[i] == skipKey)) {
+					insert(other.keys[i], other.workers[i]);
+				}
+			}
+		}
+	}
+}
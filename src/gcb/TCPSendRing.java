@@ -0,0 +1,198 @@
+package gcb;
+
+public class TCPSendRing {
+	//in-flight segments of a GarenaTCP connection, indexed by sequence number
+	//segments are stored in parallel arrays at (seq & mask); base is the lowest sequence
+	// number that hasn't been acknowledged and next is the one that will be sent next
+	//segments between base and next can be acknowledged out of order; base then
+	// skips over them once the segments before them are acknowledged
+	//this class is not thread safe; GarenaTCP protects it with sendLock
+
+	int base; //lowest unacknowledged sequence number
+	int next; //sequence number of the next segment to add
+	int outstanding; //number of unacknowledged segments between base and next
+	int outstandingBytes; //total length of those segments
+	int mask; //capacity - 1, which is a power of two
+
+	byte[][] data;
+	boolean[] acknowledged;
+	long[] sendTime; //time that the segment was last sent (including retransmissions)
+	long[] deadline; //time that the segment should be standard retransmitted
+	int[] timesSent; //how many times the segment was sent, including retransmissions
+	long[] transmitNumber; //value of the connection's transmit counter when the segment was last sent
+	int[] sackedAfter; //number of segments sent after this one that the remote end acknowledged
+
+	public TCPSendRing(int capacity) {
+		int realCapacity = 16;
+
+		while(realCapacity < capacity) {
+			realCapacity <<= 1;
+		}
+
+		allocate(realCapacity);
+		base = 0;
+		next = 0;
+		outstanding = 0;
+		outstandingBytes = 0;
+	}
+
+	//adds a segment with sequence number seq
+	public void add(int seq, byte[] segment, long time, long transmit) {
+		if(outstanding == 0) {
+			//nothing in flight, so we can restart at any sequence number
+			clear(base, next);
+			base = seq;
+			next = seq;
+		} else if(seq != next) {
+			throw new IllegalArgumentException("segment " + seq + " is not the next segment (" + next + ")");
+		}
+
+		if(next - base > mask) {
+			grow();
+		}
+
+		int index = next & mask;
+		data[index] = segment;
+		acknowledged[index] = false;
+		sendTime[index] = time;
+		deadline[index] = 0;
+		timesSent[index] = 1;
+		transmitNumber[index] = transmit;
+		sackedAfter[index] = 0;
+
+		next++;
+		outstanding++;
+		outstandingBytes += segment.length;
+	}
+
+	//whether seq was sent and hasn't been acknowledged
+	public boolean isOutstanding(int seq) {
+		return seq >= base && seq < next && !acknowledged[seq & mask];
+	}
+
+	//marks seq as acknowledged and frees its data; returns false if it wasn't outstanding
+	public boolean acknowledge(int seq) {
+		if(!isOutstanding(seq)) {
+			return false;
+		}
+
+		int index = seq & mask;
+		acknowledged[index] = true;
+		outstandingBytes -= data[index].length;
+		data[index] = null;
+		outstanding--;
+
+		//skip over everything that was acknowledged out of order
+		while(base < next && acknowledged[base & mask]) {
+			base++;
+		}
+
+		return true;
+	}
+
+	//lowest unacknowledged sequence number, or next if nothing is outstanding
+	public int first() {
+		return base;
+	}
+
+	public int next() {
+		return next;
+	}
+
+	public int size() {
+		return outstanding;
+	}
+
+	public int bytes() {
+		return outstandingBytes;
+	}
+
+	public boolean isEmpty() {
+		return outstanding == 0;
+	}
+
+	public byte[] getData(int seq) {
+		return data[seq & mask];
+	}
+
+	public long getSendTime(int seq) {
+		return sendTime[seq & mask];
+	}
+
+	public long getDeadline(int seq) {
+		return deadline[seq & mask];
+	}
+
+	public void setDeadline(int seq, long time) {
+		deadline[seq & mask] = time;
+	}
+
+	public int getTimesSent(int seq) {
+		return timesSent[seq & mask];
+	}
+
+	public long getTransmitNumber(int seq) {
+		return transmitNumber[seq & mask];
+	}
+
+	public int getSackedAfter(int seq) {
+		return sackedAfter[seq & mask];
+	}
+
+	public void incrementSackedAfter(int seq) {
+		sackedAfter[seq & mask]++;
+	}
+
+	//records that seq was sent again
+	public void retransmitted(int seq, long time, long transmit) {
+		int index = seq & mask;
+		sendTime[index] = time;
+		timesSent[index]++;
+		transmitNumber[index] = transmit;
+		sackedAfter[index] = 0;
+	}
+
+	private void clear(int from, int to) {
+		for(int seq = from; seq < to; seq++) {
+			data[seq & mask] = null;
+		}
+	}
+
+	private void allocate(int capacity) {
+		mask = capacity - 1;
+		data = new byte[capacity][];
+		acknowledged = new boolean[capacity];
+		sendTime = new long[capacity];
+		deadline = new long[capacity];
+		timesSent = new int[capacity];
+		transmitNumber = new long[capacity];
+		sackedAfter = new int[capacity];
+	}
+
+	//doubles the capacity; only needed if the window is larger than what we expected
+	private void grow() {
+		byte[][] oldData = data;
+		boolean[] oldAcknowledged = acknowledged;
+		long[] oldSendTime = sendTime;
+		long[] oldDeadline = deadline;
+		int[] oldTimesSent = timesSent;
+		long[] oldTransmitNumber = transmitNumber;
+		int[] oldSackedAfter = sackedAfter;
+		int oldMask = mask;
+
+		allocate((mask + 1) * 2);
+
+		for(int seq = base; seq < next; seq++) {
+			int oldIndex = seq & oldMask;
+			int index = seq & mask;
+
+			data[index] = oldData[oldIndex];
+			acknowledged[index] = oldAcknowledged[oldIndex];
+			sendTime[index] = oldSendTime[oldIndex];
+			deadline[index] = oldDeadline[oldIndex];
+			timesSent[index] = oldTimesSent[oldIndex];
+			transmitNumber[index] = oldTransmitNumber[oldIndex];
+			sackedAfter[index] = oldSackedAfter[oldIndex];
+		}
+	}
+}
@@ -0,0 +1,397 @@
+package gcb;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+class TCPWorker extends Thread {
+	GarenaTCPPool pool;
+	int id;
+	Map<Integer, GarenaTCP> tcpConnections;
+	TCPPacketQueue queue; //packets from the pool; only this thread polls
+	TCPPacket packet; //packet being processed, reused; only used from this thread
+
+	//connection ID -> time that the connection needs to standard retransmit
+	//connections schedule from other threads too, so this is protected by timerLock
+	TimerWheel timers;
+	ReentrantLock timerLock;
+
+	//timers that fired, handled outside of timerLock
+	int[] expiredConnections;
+	long[] expiredDeadlines;
+
+	//in event loop mode, the local sockets of our connections are registered here
+	// and we wait on the selector instead of on queue; null in thread mode
+	Selector selector;
+	long idleSince; //time that we were last seen without connections, or 0 if we have some
+	volatile boolean selecting; //whether we may be blocked in select, so enqueue has to wake up the selector
+
+	public TCPWorker(GarenaTCPPool pool, int id) {
+		this.pool = pool;
+		this.id = id;
+		tcpConnections = new HashMap<Integer, GarenaTCP>();
+		queue = TCPPacketQueue.fromConfiguration();
+		packet = new TCPPacket(null, null, 0, null);
+
+		timerLock = new ReentrantLock();
+		timers = new TimerWheel((long) Math.ceil(GCBConfig.configuration.getDouble("gcb_tcp_srttg", 20)));
+		expiredConnections = new int[16];
+		expiredDeadlines = new long[16];
+
+		if(pool.eventLoop) {
+			try {
+				selector = Selector.open();
+			} catch(IOException ioe) {
+				Main.println(1, "[TCPWorker " + id + "] Failed to open selector, using one thread per connection: " + ioe.getLocalizedMessage());
+			}
+		}
+	}
+
+	//copies packet into our queue, so the caller may reuse it; the queue takes over the buffer reference
+	public void enqueue(TCPPacket packet) {
+		enqueue(packet.garena, packet.address, packet.port, packet.buffer);
+	}
+
+	//called from the pool thread for connection initiations, and from the peer receive threads for CONN packets
+	public void enqueue(GarenaInterface garena, InetAddress address, int port, PacketBuffer buffer) {
+		queue.offer(garena, address, port, buffer);
+
+		if(selecting) {
+			selector.wakeup();
+		}
+	}
+
+	//wakes up the connection at deadline; see GarenaTCP.onTimer
+	public void schedule(int conn_id, long deadline) {
+		boolean earliest;
+
+		timerLock.lock();
+
+		try {
+			earliest = deadline < timers.nextDeadline();
+			timers.schedule(conn_id, deadline);
+		} finally {
+			timerLock.unlock();
+		}
+
+		//we may be waiting for a later timer
+		if(earliest) {
+			if(selector != null) {
+				selector.wakeup();
+			} else {
+				queue.wakeConsumer();
+			}
+		}
+	}
+
+	public void registerConnection(int conn_id, GarenaTCP tcp) {
+		synchronized(tcpConnections) {
+			tcpConnections.put(conn_id, tcp);
+		}
+
+		tcp.setWorker(this);
+	}
+
+	public int count() {
+		return tcpConnections.size();
+	}
+
+	public int getInFlightPackets() {
+		int total = 0;
+
+		synchronized(tcpConnections) {
+			for(GarenaTCP connection : tcpConnections.values()) {
+				total += connection.getInFlightPackets();
+			}
+		}
+
+		return total;
+	}
+
+	public long getInFlightBytes() {
+		long total = 0;
+
+		synchronized(tcpConnections) {
+			for(GarenaTCP connection : tcpConnections.values()) {
+				total += connection.getInFlightBytes();
+			}
+		}
+
+		return total;
+	}
+
+	public GarenaTCPPool getPool() {
+		return pool;
+	}
+
+	public void removeTCPConnection(int conn_id) {
+		synchronized(tcpConnections) {
+			tcpConnections.remove(conn_id);
+		}
+
+		pool.removeTCPConnection(conn_id);
+	}
+
+	public void run() {
+		queue.setConsumer(Thread.currentThread());
+
+		while(true) {
+			try {
+				if(selector != null) {
+					select();
+				} else {
+					waitForWork();
+				}
+
+				int expired;
+
+				timerLock.lock();
+
+				try {
+					expired = expireTimers();
+				} finally {
+					timerLock.unlock();
+				}
+
+				for(int i = 0; i < expired; i++) {
+					GarenaTCP tcp_connection;
+
+					synchronized(tcpConnections) {
+						tcp_connection = tcpConnections.get(expiredConnections[i]);
+					}
+
+					//the connection may have ended since it registered the timer
+					if(tcp_connection != null) {
+						tcp_connection.onTimer(expiredDeadlines[i]);
+					}
+				}
+
+				while(queue.poll(packet)) {
+					try {
+						processPacket(packet);
+					} finally {
+						//connections retain the buffer if they keep the data
+						packet.buffer.release();
+						packet.buffer = null;
+					}
+				}
+
+				if(checkRetire()) {
+					break;
+				}
+			} catch(Exception e) {
+				Main.println(1, "[TCPWorker " + id + "] CRITICAL ERROR: caught in loop: " + e.getLocalizedMessage());
+				e.printStackTrace();
+			}
+		}
+
+		if(selector != null) {
+			try {
+				selector.close();
+			} catch(IOException ioe) {}
+		}
+	}
+
+	//returns true if we have been without connections for gcb_tcp_workeridle and were removed from the pool
+	private boolean checkRetire() {
+		if(pool.workerIdleTime <= 0 || count() > 0 || !queue.isEmpty()) {
+			idleSince = 0;
+			return false;
+		}
+
+		long currentTime = System.currentTimeMillis();
+
+		if(idleSince == 0) {
+			idleSince = currentTime;
+			return false;
+		}
+
+		return currentTime - idleSince >= pool.workerIdleTime && pool.retireWorker(this);
+	}
+
+	//earliest time that we have to wake up without a packet: the next timer, or the time to retire
+	private long nextWakeup() {
+		long nextTimer;
+
+		timerLock.lock();
+
+		try {
+			nextTimer = timers.nextDeadline();
+		} finally {
+			timerLock.unlock();
+		}
+
+		if(idleSince != 0) {
+			return Math.min(nextTimer, idleSince + pool.workerIdleTime);
+		} else {
+			return nextTimer;
+		}
+	}
+
+	//thread mode: waits until there is a packet in the queue, a timer is due or it is time to retire
+	//schedule wakes us up if it adds an earlier timer after we read nextDeadline
+	private void waitForWork() {
+		while(queue.isEmpty()) {
+			long nextTimer = nextWakeup();
+			long delay = nextTimer - System.currentTimeMillis();
+
+			if(delay <= 0) {
+				break;
+			}
+
+			queue.await(nextTimer == Long.MAX_VALUE ? 0 : delay);
+		}
+	}
+
+	//event loop mode: waits until there is a packet in the queue, a timer is due or a local socket is ready,
+	// and handles the local sockets that are ready
+	//enqueue and schedule wake up the selector, so nothing can be missed between checking and selecting
+	private void select() throws IOException {
+		long delay;
+
+		//set selecting before checking the queue, so that an enqueue in between wakes up the selector
+		selecting = true;
+
+		if(!queue.isEmpty()) {
+			delay = -1;
+		} else {
+			long nextTimer = nextWakeup();
+
+			if(nextTimer == Long.MAX_VALUE) {
+				delay = 0;
+			} else {
+				//select(0) would wait forever, so a timer that is due now means selectNow
+				delay = Math.max(nextTimer - System.currentTimeMillis(), 0);
+				delay = delay == 0 ? -1 : delay;
+			}
+		}
+
+		if(delay == 0) {
+			selector.select();
+		} else if(delay > 0) {
+			selector.select(delay);
+		} else {
+			selector.selectNow();
+		}
+
+		selecting = false;
+
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+		while(it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+
+			GarenaTCP tcp_connection = (GarenaTCP) key.attachment();
+
+			try {
+				if(key.isValid() && key.isConnectable()) {
+					tcp_connection.onConnectable();
+				}
+
+				if(key.isValid() && key.isWritable()) {
+					tcp_connection.onWritable();
+				}
+
+				if(key.isValid() && key.isReadable()) {
+					tcp_connection.onReadable();
+				}
+			} catch(CancelledKeyException cke) {
+				//connection ended while we were handling it
+			}
+		}
+	}
+
+	private void processPacket(TCPPacket packet) {
+		byte[] bytes = packet.buffer.array;
+
+		if(bytes[0] == 0x0B) {
+			int remote_id = GarenaEncrypt.byteArrayToIntLittle(bytes, 4);
+			int conn_id = GarenaEncrypt.byteArrayToIntLittle(bytes, 8);
+			int destination = GarenaEncrypt.byteArrayToIntLittle(bytes, 16); //little endian short followed by two zeroes
+
+			MemberInfo member = packet.garena.memberFromID(remote_id);
+			if(member != null) {
+				Main.println(4, "[TCPWorker " + id + "] Starting TCP connection with " +  member.username);
+			} else {
+				Main.println(4, "[TCPWorker " + id + "] Starting TCP connection with " +  remote_id);
+			}
+
+			GarenaTCP tcp_connection = new GarenaTCP(packet.garena, this);
+			tcp_connection.init(packet.address, packet.port, remote_id, conn_id, destination, member);
+
+			synchronized(tcpConnections) {
+				if(tcpConnections.containsKey(conn_id)) {
+					Main.println(1, "[Worker " + id + "] Warning: duplicate TCP connection ID; overwriting previous");
+					tcpConnections.get(conn_id).end(true);
+				}
+
+				tcpConnections.put(conn_id, tcp_connection);
+			}
+
+			pool.registerConnection(conn_id, this, tcp_connection);
+		} else if(bytes[0] == 0x0D) {
+			int conn_id = GarenaEncrypt.byteArrayToIntLittle(bytes, 4);
+
+			if(conn_id == 0) {
+				return; //happens sometimes
+			}
+
+			GarenaTCP tcp_connection;
+
+			synchronized(tcpConnections) {
+				tcp_connection = tcpConnections.get(conn_id);
+			}
+
+			int remote_id = GarenaEncrypt.byteArrayToIntLittle(bytes, 8);
+
+			if(tcp_connection == null || tcp_connection.remote_id != remote_id) {
+				Main.println(11, "[TCPWorker " + id + "] Warning: CONN packet received from user " +
+						remote_id + " at " + packet.address +
+						", but connection " + conn_id + " not started with user");
+				return;
+			}
+
+			int seq = GarenaEncrypt.byteArrayToIntLittle(bytes, 12);
+			int ack = GarenaEncrypt.byteArrayToIntLittle(bytes, 16);
+
+			//CONN ACK, CONN DATA, or CONN FIN?
+
+			if(bytes[1] == 0x14) { //CONN DATA
+				tcp_connection.data(seq, ack, packet.buffer, 20, packet.buffer.length - 20);
+			} else if(bytes[1] == 0x0E) { //CONN ACK
+				tcp_connection.connAck(seq, ack);
+			} else if(bytes[1] == 0x01) {
+				Main.println(4, "[TCPWorker " + id + "] User requested termination on connection " + conn_id);
+				// tcp_connections will be updated by GarenaTCP
+				// so just call end
+				tcp_connection.end(true);
+			} else {
+				Main.println(11, "[TCPWorker " + id + "] PeerLoop: unknown CONN type received: " + bytes[1]);
+			}
+		}
+	}
+
+	//copies the timers that are due out of the wheel; called with timerLock held
+	private int expireTimers() {
+		int expired = timers.expire(System.currentTimeMillis());
+
+		if(expired > expiredConnections.length) {
+			expiredConnections = new int[expired * 2];
+			expiredDeadlines = new long[expired * 2];
+		}
+
+		for(int i = 0; i < expired; i++) {
+			expiredConnections[i] = timers.getExpiredId(i);
+			expiredDeadlines[i] = timers.getExpiredDeadline(i);
+		}
+
+		return expired;
+	}
+}
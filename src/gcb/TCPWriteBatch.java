@@ -0,0 +1,188 @@
+package gcb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+public class TCPWriteBatch {
+	//data for the local (GHost++) socket of a GarenaTCP connection, gathered so that
+	// all W3GS packets from a segment (and from the stored segments it releases) go out
+	// in one write instead of one write per packet
+	//entries refer to the caller's arrays, usually receive buffers, until they are written or
+	// detached; detach copies them into our own array so the batch can be kept for later
+	//this class is not thread safe; it is only used from the connection's worker thread
+
+	byte[][] arrays;
+	int[] offsets;
+	int[] lengths;
+	int count; //number of entries
+	int bytes; //total length of the entries
+	int gathered; //number of writes that were added since the batch was last cleared
+
+	//receive buffers that have to stay valid until the entries are written or detached
+	PacketBuffer[] held;
+	int heldCount;
+
+	byte[] staging; //our own copy of detached entries, and the data for a single write in thread mode
+	ByteBuffer[] wrappers; //for gathering writes to channels
+
+	public TCPWriteBatch() {
+		arrays = new byte[16][];
+		offsets = new int[16];
+		lengths = new int[16];
+		held = new PacketBuffer[4];
+		staging = new byte[0];
+		wrappers = new ByteBuffer[0];
+	}
+
+	public void add(byte[] data, int offset, int length) {
+		if(length <= 0) {
+			return;
+		}
+
+		gathered++;
+		addEntry(data, offset, length);
+	}
+
+	private void addEntry(byte[] data, int offset, int length) {
+		if(count == arrays.length) {
+			growEntries();
+		}
+
+		arrays[count] = data;
+		offsets[count] = offset;
+		lengths[count] = length;
+		count++;
+		bytes += length;
+	}
+
+	//keeps buffer (and our reference to it) until the batch is written or detached
+	public void hold(PacketBuffer buffer) {
+		if(heldCount == held.length) {
+			PacketBuffer[] larger = new PacketBuffer[held.length * 2];
+			System.arraycopy(held, 0, larger, 0, heldCount);
+			held = larger;
+		}
+
+		held[heldCount++] = buffer;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int bytes() {
+		return bytes;
+	}
+
+	//number of writes that were added, including detached ones
+	public int gathered() {
+		return gathered;
+	}
+
+	//copies every entry into staging, so the batch no longer refers to the callers' arrays
+	public void detach() {
+		if(count == 0 || (count == 1 && arrays[0] == staging)) {
+			releaseHeld();
+			return;
+		}
+
+		//an earlier detach may have left its data at the start of staging
+		int stagedLength = arrays[0] == staging ? lengths[0] : 0;
+		int first = arrays[0] == staging ? 1 : 0;
+
+		if(staging.length < bytes) {
+			byte[] larger = new byte[Math.max(bytes, staging.length * 2)];
+			System.arraycopy(staging, 0, larger, 0, stagedLength);
+			staging = larger;
+		}
+
+		int position = stagedLength;
+
+		for(int i = first; i < count; i++) {
+			System.arraycopy(arrays[i], offsets[i], staging, position, lengths[i]);
+			position += lengths[i];
+		}
+
+		clearEntries();
+		addEntry(staging, 0, position);
+		releaseHeld();
+	}
+
+	//writes the batch with a single write and clears it
+	public void writeTo(OutputStream out) throws IOException {
+		if(count == 0) {
+			return;
+		}
+
+		try {
+			if(count == 1) {
+				out.write(arrays[0], offsets[0], lengths[0]);
+			} else {
+				detach();
+				out.write(staging, 0, lengths[0]);
+			}
+		} finally {
+			clear();
+		}
+	}
+
+	//returns the entries as buffers for a gathering write; valid until the batch changes
+	public ByteBuffer[] toByteBuffers() {
+		if(wrappers.length < count) {
+			wrappers = new ByteBuffer[arrays.length];
+		}
+
+		for(int i = 0; i < count; i++) {
+			wrappers[i] = ByteBuffer.wrap(arrays[i], offsets[i], lengths[i]);
+		}
+
+		return wrappers;
+	}
+
+	//removes all entries and releases the held buffers
+	public void clear() {
+		clearEntries();
+		gathered = 0;
+
+		for(int i = 0; i < wrappers.length; i++) {
+			wrappers[i] = null;
+		}
+
+		releaseHeld();
+	}
+
+	private void clearEntries() {
+		for(int i = 0; i < count; i++) {
+			arrays[i] = null;
+		}
+
+		count = 0;
+		bytes = 0;
+	}
+
+	private void releaseHeld() {
+		for(int i = 0; i < heldCount; i++) {
+			held[i].release();
+			held[i] = null;
+		}
+
+		heldCount = 0;
+	}
+
+	private void growEntries() {
+		byte[][] largerArrays = new byte[arrays.length * 2][];
+		int[] largerOffsets = new int[arrays.length * 2];
+		int[] largerLengths = new int[arrays.length * 2];
+		System.arraycopy(arrays, 0, largerArrays, 0, count);
+		System.arraycopy(offsets, 0, largerOffsets, 0, count);
+		System.arraycopy(lengths, 0, largerLengths, 0, count);
+		arrays = largerArrays;
+		offsets = largerOffsets;
+		lengths = largerLengths;
+	}
+}
@@ -0,0 +1,226 @@
+package gcb;
+
+public class TimerWheel {
+	//hashed timer wheel of integer identifiers with millisecond deadlines
+	//entries are never removed when cancelled or rescheduled; instead the owner
+	// checks each expired entry against its own state and ignores stale ones
+	//this class is not thread safe; callers must synchronize
+
+	public static int DEFAULT_BUCKETS = 256;
+
+	long tickLength; //milliseconds covered by one bucket
+	int mask; //number of buckets - 1, which is a power of two
+
+	int[][] bucketIds;
+	long[][] bucketDeadlines;
+	int[] bucketSizes;
+
+	long currentTick; //ticks before this one have already been expired; this one may only be partly expired
+	int size; //number of entries in the wheel, including stale ones
+
+	//earliest deadline in the wheel, or Long.MAX_VALUE if it is empty; only valid if earliestValid
+	//schedule keeps it up to date, and only expiring the earliest entry makes it invalid, so the
+	// buckets are scanned at most once per expiry that removed it, rather than on every nextDeadline
+	long earliest;
+	boolean earliestValid;
+
+	//entries returned by the last call to expire
+	int[] expiredIds;
+	long[] expiredDeadlines;
+
+	public TimerWheel(long tickLength, int buckets) {
+		if(tickLength < 1) {
+			tickLength = 1;
+		}
+
+		int capacity = 1;
+
+		while(capacity < buckets) {
+			capacity <<= 1;
+		}
+
+		this.tickLength = tickLength;
+		mask = capacity - 1;
+
+		bucketIds = new int[capacity][];
+		bucketDeadlines = new long[capacity][];
+		bucketSizes = new int[capacity];
+
+		currentTick = System.currentTimeMillis() / tickLength;
+		earliest = Long.MAX_VALUE;
+		earliestValid = true;
+		expiredIds = new int[16];
+		expiredDeadlines = new long[16];
+	}
+
+	public TimerWheel(long tickLength) {
+		this(tickLength, DEFAULT_BUCKETS);
+	}
+
+	public void schedule(int id, long deadline) {
+		long tick = deadline / tickLength;
+
+		//deadlines in the past expire on the next call to expire
+		if(tick < currentTick) {
+			tick = currentTick;
+		}
+
+		add((int) (tick & mask), id, deadline);
+		size++;
+
+		if(earliestValid && deadline < earliest) {
+			earliest = deadline;
+		}
+	}
+
+	//removes every entry with a deadline at or before now
+	//returns the number of entries, which can be read with getExpiredId and getExpiredDeadline
+	public int expire(long now) {
+		long nowTick = now / tickLength;
+		int count = 0;
+
+		if(size == 0) {
+			currentTick = Math.max(currentTick, nowTick);
+			return 0;
+		}
+
+		//if we were not called for a whole rotation, each bucket only has to be visited once
+		long lastTick = Math.min(nowTick, currentTick + mask);
+
+		for(long tick = currentTick; tick <= lastTick; tick++) {
+			int bucket = (int) (tick & mask);
+			int[] ids = bucketIds[bucket];
+			long[] deadlines = bucketDeadlines[bucket];
+			int bucketSize = bucketSizes[bucket];
+			int kept = 0;
+
+			for(int i = 0; i < bucketSize; i++) {
+				if(deadlines[i] <= now) {
+					if(count == expiredIds.length) {
+						growExpired();
+					}
+
+					expiredIds[count] = ids[i];
+					expiredDeadlines[count] = deadlines[i];
+					count++;
+				} else {
+					//due later in this tick or in a later rotation
+					ids[kept] = ids[i];
+					deadlines[kept] = deadlines[i];
+					kept++;
+				}
+			}
+
+			bucketSizes[bucket] = kept;
+			size -= bucketSize - kept;
+		}
+
+		//entries due later in the current tick are still in its bucket
+		currentTick = Math.max(currentTick, nowTick);
+
+		//every entry at or before now is gone, so if the earliest deadline has passed, it has to be found again
+		if(earliest <= now) {
+			earliestValid = false;
+		}
+
+		return count;
+	}
+
+	//returns the earliest deadline in the wheel, or Long.MAX_VALUE if it is empty
+	//stale entries are included, so the owner may be woken up for nothing
+	public long nextDeadline() {
+		if(!earliestValid) {
+			earliest = findEarliest();
+			earliestValid = true;
+		}
+
+		return earliest;
+	}
+
+	//scans the buckets for the earliest deadline
+	private long findEarliest() {
+		if(size == 0) {
+			return Long.MAX_VALUE;
+		}
+
+		for(long tick = currentTick; tick <= currentTick + mask; tick++) {
+			int bucket = (int) (tick & mask);
+			long[] deadlines = bucketDeadlines[bucket];
+			long min = Long.MAX_VALUE;
+
+			//only consider entries of this rotation
+			for(int i = 0; i < bucketSizes[bucket]; i++) {
+				if(deadlines[i] / tickLength <= tick && deadlines[i] < min) {
+					min = deadlines[i];
+				}
+			}
+
+			if(min != Long.MAX_VALUE) {
+				return min;
+			}
+		}
+
+		//everything is at least one rotation away
+		long min = Long.MAX_VALUE;
+
+		for(int bucket = 0; bucket < bucketSizes.length; bucket++) {
+			for(int i = 0; i < bucketSizes[bucket]; i++) {
+				min = Math.min(min, bucketDeadlines[bucket][i]);
+			}
+		}
+
+		return min;
+	}
+
+	public int getExpiredId(int index) {
+		return expiredIds[index];
+	}
+
+	public long getExpiredDeadline(int index) {
+		return expiredDeadlines[index];
+	}
+
+	//number of entries in the wheel, including stale ones
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		for(int i = 0; i < bucketSizes.length; i++) {
+			bucketSizes[i] = 0;
+		}
+
+		size = 0;
+		earliest = Long.MAX_VALUE;
+		earliestValid = true;
+	}
+
+	private void add(int bucket, int id, long deadline) {
+		int bucketSize = bucketSizes[bucket];
+
+		if(bucketIds[bucket] == null) {
+			bucketIds[bucket] = new int[4];
+			bucketDeadlines[bucket] = new long[4];
+		} else if(bucketSize == bucketIds[bucket].length) {
+			int[] ids = new int[bucketSize * 2];
+			long[] deadlines = new long[bucketSize * 2];
+			System.arraycopy(bucketIds[bucket], 0, ids, 0, bucketSize);
+			System.arraycopy(bucketDeadlines[bucket], 0, deadlines, 0, bucketSize);
+			bucketIds[bucket] = ids;
+			bucketDeadlines[bucket] = deadlines;
+		}
+
+		bucketIds[bucket][bucketSize] = id;
+		bucketDeadlines[bucket][bucketSize] = deadline;
+		bucketSizes[bucket] = bucketSize + 1;
+	}
+
+	private void growExpired() {
+		int[] ids = new int[expiredIds.length * 2];
+		long[] deadlines = new long[expiredDeadlines.length * 2];
+		System.arraycopy(expiredIds, 0, ids, 0, expiredIds.length);
+		System.arraycopy(expiredDeadlines, 0, deadlines, 0, expiredDeadlines.length);
+		expiredIds = ids;
+		expiredDeadlines = deadlines;
+	}
+}
@@ -0,0 +1,74 @@
+package gcb;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class VirtualThreads {
+	//starts gcb's per-connection and per-room loops either as normal platform threads or,
+	// if gcb_threads_virtual is set and the JVM has them (Java 21+), as virtual threads
+	//gcb is compiled for older Java versions, so the virtual thread API is looked up with reflection
+	//the Thread object itself is never started in virtual mode; a virtual thread calls its run method
+
+	static boolean enabled = false;
+	static Method ofVirtual; //Thread.ofVirtual()
+	static Method builderName; //Thread.Builder.name(String)
+	static Method builderUnstarted; //Thread.Builder.unstarted(Runnable)
+
+	static AtomicInteger virtualCount = new AtomicInteger(); //number of virtual threads that are running
+
+	//reads the configuration; call once, after the configuration is loaded
+	public static void init() {
+		if(!GCBConfig.configuration.getBoolean("gcb_threads_virtual", false)) {
+			Main.println(3, "[VirtualThreads] Using platform threads");
+			return;
+		}
+
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builderName = builderClass.getMethod("name", String.class);
+			builderUnstarted = builderClass.getMethod("unstarted", Runnable.class);
+			enabled = true;
+
+			Main.println(3, "[VirtualThreads] Using virtual threads for TCP connections, TCP workers, room loops and connect workers");
+		} catch(Exception e) {
+			Main.println(1, "[VirtualThreads] Warning: gcb_threads_virtual is set, but this JVM (" + System.getProperty("java.version") + ") doesn't support virtual threads; using platform threads");
+		}
+	}
+
+	//starts thread, either itself or its run method on a new virtual thread
+	public static void start(final Thread thread) {
+		if(enabled) {
+			Runnable runnable = new Runnable() {
+				public void run() {
+					try {
+						thread.run();
+					} finally {
+						virtualCount.decrementAndGet();
+					}
+				}
+			};
+
+			try {
+				Object builder = builderName.invoke(ofVirtual.invoke(null), thread.getName());
+				Thread virtualThread = (Thread) builderUnstarted.invoke(builder, runnable);
+
+				virtualCount.incrementAndGet();
+				virtualThread.start();
+				return;
+			} catch(Exception e) {
+				Main.println(1, "[VirtualThreads] Failed to start virtual thread, using a platform thread: " + e.getLocalizedMessage());
+			}
+		}
+
+		thread.start();
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static int getVirtualCount() {
+		return virtualCount.get();
+	}
+}
@@ -1,36 +1,144 @@
 package gcb;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
 public class WC3GameIdentifier {
+	//what update found
+	public static final int UNCHANGED = 0; //the same packet, apart from an uptime that is recent enough
+	public static final int UPTIME = 1; //only the uptime changed, and ours was more than UPTIME_REFRESH old
+	public static final int CHANGED = 2;
+
+	//milliseconds that the uptime in rawPacket may fall behind; it changes with every GAMEINFO, so
+	// replacing the packet for it every time would encode the datagram again for every broadcast
+	static final int UPTIME_REFRESH = 60000;
+
 	long timeReceived; //last time when this game was detected
+	long timeUpdated; //last time when rawPacket was replaced
 	String gamename;
 	int ghostEntryKey; //LAN entry key to join GHost++
 	int gameport;
 	Integer garenaEntryKey; //null if gcb_broadcastfilter_key is off
 	int hostCounter;
+	WC3GameKey key; //identifies this game in WC3Interface's index
 	
 	byte[] rawPacket; //packet to easily forward to clients
+	//sender user ID -> rawPacket in a GP2PP UDP encapsulation from that user; see getDatagram
+	//with per-room accounts there is one for each account, and all are encoded again after rawPacket changes
+	Map<Integer, byte[]> datagrams;
 
 	public WC3GameIdentifier(String gamename, int gameport, int ghostEntryKey, int hostCounter) {
 		this(gamename, gameport, ghostEntryKey, hostCounter, null);
 	}
 
 	public WC3GameIdentifier(String gamename, int gameport, int ghostEntryKey, int hostCounter, Integer garenaEntryKey) {
-		this.gamename = gamename;
-		this.gameport = gameport;
-		this.ghostEntryKey = ghostEntryKey;
+		this(new WC3GameKey(gamename.getBytes(), 0, gamename.getBytes().length, gameport, ghostEntryKey), hostCounter, garenaEntryKey);
+	}
+
+	//key may be a lookup key over a received packet; the game keeps a copy of it
+	public WC3GameIdentifier(WC3GameKey key, int hostCounter, Integer garenaEntryKey) {
+		this.key = key.copy();
+		gamename = new String(this.key.gamename);
+		gameport = key.gameport;
+		ghostEntryKey = key.ghostEntryKey;
 		this.hostCounter = hostCounter;
 		this.garenaEntryKey = garenaEntryKey;
+		datagrams = new HashMap<Integer, byte[]>();
 
 		//update with a default array
 		update(new byte[] {}, 0, 0);
 	}
 
-	public void update(byte[] rawPacket, int offset, int length) {
+	public synchronized int update(byte[] rawPacket, int offset, int length) {
+		return update(rawPacket, offset, length, -1);
+	}
+
+	//returns UNCHANGED, UPTIME or CHANGED; uptimeOffset is where the GAMEINFO uptime is, or -1 to compare everything
+	public synchronized int update(byte[] rawPacket, int offset, int length, int uptimeOffset) {
 		timeReceived = System.currentTimeMillis();
+		int result = CHANGED;
+
+		if(this.rawPacket != null && equals(this.rawPacket, rawPacket, offset, length, uptimeOffset)) {
+			if(timeReceived - timeUpdated < UPTIME_REFRESH) {
+				return UNCHANGED;
+			}
+
+			result = UPTIME;
+		}
 		
 		//make a copy of the packet in case the contents change
 		this.rawPacket = new byte[length];
 		System.arraycopy(rawPacket, offset, this.rawPacket, 0, length);
+		datagrams.clear();
+		timeUpdated = timeReceived;
+		return result;
+	}
+
+	//returns whether packet differs from the one we have only in slots available, which is at slotsOffset
+	//the uptime after it changes with every packet, so it is ignored
+	public synchronized boolean onlySlotsChanged(byte[] packet, int offset, int length, int slotsOffset) {
+		if(rawPacket.length != length || slotsOffset + 8 > length) {
+			return false;
+		}
+
+		boolean slotsChanged = false;
+
+		for(int i = 0; i < length; i++) {
+			if(rawPacket[i] != packet[offset + i]) {
+				if(i >= slotsOffset + 4 && i < slotsOffset + 8) {
+					continue; //uptime
+				} else if(i >= slotsOffset && i < slotsOffset + 4) {
+					slotsChanged = true;
+				} else {
+					return false;
+				}
+			}
+		}
+
+		return slotsChanged;
+	}
+
+	//returns the packet as Garena users get it: in a GP2PP UDP encapsulation from senderId, from our game port to BROADCAST_PORT
+	//the datagram is only encoded again when the packet changed; callers must not modify it
+	public synchronized byte[] getDatagram(int senderId) {
+		byte[] datagram = datagrams.get(senderId);
+
+		if(datagram == null) {
+			ByteBuffer lbuf = ByteBuffer.allocate(16 + rawPacket.length);
+			lbuf.order(ByteOrder.LITTLE_ENDIAN);
+			lbuf.putInt(0x01);
+			lbuf.putInt(senderId);
+			lbuf.order(ByteOrder.BIG_ENDIAN);
+			lbuf.putShort((short) gameport);
+			lbuf.putShort((short) 0);
+			lbuf.putShort((short) WC3Interface.BROADCAST_PORT);
+			lbuf.putShort((short) 0);
+			lbuf.put(rawPacket);
+
+			datagram = lbuf.array();
+			datagrams.put(senderId, datagram);
+		}
+
+		return datagram;
+	}
+
+	//whether the packets are the same, apart from the four bytes at skipOffset (unless it's -1)
+	private static boolean equals(byte[] array, byte[] other, int offset, int length, int skipOffset) {
+		if(array.length != length) {
+			return false;
+		}
+
+		for(int i = 0; i < length; i++) {
+			if(skipOffset != -1 && i >= skipOffset && i < skipOffset + 4) {
+				continue;
+			} else if(array[i] != other[offset + i]) {
+				return false;
+			}
+		}
+
+		return true;
 	}
 
 	public boolean check(String name, int port, int key) {
@@ -40,4 +148,4 @@ public class WC3GameIdentifier {
 			return false;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,67 @@
+package gcb;
+
+class WC3GameKey {
+	//what identifies a game from GHost++: its name, port and LAN entry key
+	//the name is a range of bytes, so that WC3Interface can look up a game with one key that it sets over
+	// each received packet, without copying the name; keys in the index are copies that own their bytes
+	byte[] gamename;
+	int gamenameOffset;
+	int gamenameLength;
+	int gameport;
+	int ghostEntryKey;
+	int hash;
+
+	public WC3GameKey() {
+	}
+
+	public WC3GameKey(byte[] gamename, int offset, int length, int gameport, int ghostEntryKey) {
+		set(gamename, offset, length, gameport, ghostEntryKey);
+	}
+
+	public void set(byte[] gamename, int offset, int length, int gameport, int ghostEntryKey) {
+		this.gamename = gamename;
+		gamenameOffset = offset;
+		gamenameLength = length;
+		this.gameport = gameport;
+		this.ghostEntryKey = ghostEntryKey;
+
+		int nameHash = 1;
+
+		for(int i = offset; i < offset + length; i++) {
+			nameHash = 31 * nameHash + gamename[i];
+		}
+
+		hash = (nameHash * 31 + gameport) * 31 + ghostEntryKey;
+	}
+
+	//returns a key with its own copy of the name
+	public WC3GameKey copy() {
+		byte[] name = new byte[gamenameLength];
+		System.arraycopy(gamename, gamenameOffset, name, 0, gamenameLength);
+		return new WC3GameKey(name, 0, gamenameLength, gameport, ghostEntryKey);
+	}
+
+	public boolean equals(Object o) {
+		if(!(o instanceof WC3GameKey)) {
+			return false;
+		}
+
+		WC3GameKey other = (WC3GameKey) o;
+
+		if(hash != other.hash || gameport != other.gameport || ghostEntryKey != other.ghostEntryKey || gamenameLength != other.gamenameLength) {
+			return false;
+		}
+
+		for(int i = 0; i < gamenameLength; i++) {
+			if(gamename[gamenameOffset + i] != other.gamename[other.gamenameOffset + i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public int hashCode() {
+		return hash;
+	}
+}
\ No newline at end of file
@@ -9,16 +9,20 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.nio.BufferUnderflowException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.configuration.ConversionException;
 
@@ -32,35 +36,100 @@ public class WC3Interface {
 	int broadcast_port;
 	DatagramSocket socket;
 	byte[] buf;
+	DatagramPacket packet; //receives into buf; reused for every broadcast
 	Map<Integer, GarenaInterface> garenaConnections;
 
 	int[] rebroadcastPorts;
+	InetAddress[] rebroadcastTargets; //udp_broadcasttarget, resolved once
+	DatagramPacket rebroadcastPacket; //reused for every rebroadcast; only used by readBroadcast
 
 	//gcb_tcp_host list; only set if broadcastfilter is true
 	Set<Integer> tcpPorts;
 	Set<InetAddress> tcpHosts;
+	int[] validPorts; //tcpPorts, for isValidPort
+
+	//configuration that readBroadcast uses for every packet, read once in the constructor
+	boolean broadcastFilter;
+	boolean broadcastFilterKey;
+	boolean broadcastFilterCache;
+	boolean broadcastFilterRefresh;
+	boolean lanfix;
+
+	//rewrites GAMEINFO packets for Garena; only used by readBroadcast
+	GameInfoRewriter rewriter;
+	WC3GameKey lookupKey; //set over each received packet to look up its game
+
+	//gcb_broadcastfilter_refresh: W3GS_REFRESHGAME instead of GAMEINFO when only the slots of a game changed
+	byte[] refreshPacket; //only used by readBroadcast
+	AtomicLong refreshCompared = new AtomicLong(); //packets of known games that were compared with the last one
+	AtomicLong refreshSent = new AtomicLong();
+	AtomicLong refreshBytesSaved = new AtomicLong(); //per member, from refreshes that replaced a broadcast GAMEINFO
 
 	//games that we have detected for gcb_broadcastfilter_key
 	//use this to generate unique entry keys for Garena so that people can't spoof regular LAN joining
 	//that is, LAN entry key is hidden from Garena users
-	HashMap<WC3GameIdentifier, Integer> entryKeys;
+	//gameIndex finds a game from what GHost++ broadcasts (name, port and LAN entry key); it is kept in the
+	// order that the games were last received, so expired games are always at the front
+	//games finds a game from the entry key that we generated for Garena
+	LinkedHashMap<WC3GameKey, WC3GameIdentifier> gameIndex;
 	HashMap<Integer, WC3GameIdentifier> games;
 
+	//sender user ID -> replies to SEARCHGAME encoded from that user; with per-room accounts there is one for each account
+	//a sender's replies are rebuilt from games when gamesVersion has changed, and otherwise used without locking
+	ConcurrentHashMap<Integer, SearchReplies> searchReplies;
+	AtomicInteger gamesVersion; //incremented after a game is added, removed or has a different packet (see WC3GameIdentifier.update)
+	AtomicInteger gamesContentVersion; //like gamesVersion, but not incremented when only an uptime was refreshed
+	SearchThrottle searchThrottle; //limits how often one source gets the replies
+
 	//this random is used to generate entry keys for Garena
 	Random random;
 	
 	//whether we're exiting nicely
 	boolean exitingNicely = false;
+	
+	//sends broadcasts to the rooms so that the broadcast thread doesn't have to
+	BroadcastFanout fanout;
+
+	//the GAMEINFO datagrams of all cached games at one gamesVersion, encoded for one sender; never modified
+	class SearchReplies {
+		int version;
+		int contentVersion;
+		byte[][] datagrams;
+	}
 
 	public WC3Interface(Map<Integer, GarenaInterface> garenaConnections) {
 		this.garenaConnections = garenaConnections;
 		buf = new byte[65536];
+		packet = new DatagramPacket(buf, buf.length);
+		gamesVersion = new AtomicInteger();
+		gamesContentVersion = new AtomicInteger();
+		searchReplies = new ConcurrentHashMap<Integer, SearchReplies>();
+
+		broadcastFilter = GCBConfig.configuration.getBoolean("gcb_broadcastfilter", true);
+		broadcastFilterKey = GCBConfig.configuration.getBoolean("gcb_broadcastfilter_key", true);
+		broadcastFilterCache = GCBConfig.configuration.getBoolean("gcb_broadcastfilter_cache", true);
+		broadcastFilterRefresh = GCBConfig.configuration.getBoolean("gcb_broadcastfilter_refresh", false);
+		lanfix = GCBConfig.configuration.getBoolean("gcb_lanfix", false);
+		rewriter = new GameInfoRewriter(buf.length);
+		lookupKey = new WC3GameKey();
+		refreshPacket = new byte[16];
+		
+		fanout = new BroadcastFanout(garenaConnections);
+
+		if(broadcastFilterKey) {
+			if(!GCBConfig.configuration.getBoolean("gcb_tcp_buffer", true)) {
+				Main.println(1, "[WC3Interface] Warning: gcb_tcp_buffer must be enabled if gcb_broadcastfilter_key is!");
+			}
 
-		if(GCBConfig.configuration.getBoolean("gcb_broadcastfilter_key", true)) {
 			random = new SecureRandom();
-			entryKeys = new HashMap<WC3GameIdentifier, Integer>();
+			gameIndex = new LinkedHashMap<WC3GameKey, WC3GameIdentifier>();
 			games = new HashMap<Integer, WC3GameIdentifier>();
-		} else if(GCBConfig.configuration.getBoolean("gcb_broadcastfilter_cache", true)) {
+			searchThrottle = new SearchThrottle(
+					GCBConfig.configuration.getInt("gcb_searchgame_interval", 1000),
+					GCBConfig.configuration.getInt("gcb_searchgame_burst", 3),
+					GCBConfig.configuration.getInt("gcb_searchgame_memo", 500),
+					GCBConfig.configuration.getInt("gcb_searchgame_sources", 4096));
+		} else if(broadcastFilterCache) {
 			//for some reason, caching the game packets is enabled even though
 			// entry key rewriting is disabled
 			//this combination does not work, so we print a warning message
@@ -85,6 +154,8 @@ public class WC3Interface {
 		}
 
 		Main.println(11, "[WC3Interface] Detected " + rebroadcastPorts.length + " rebroadcast ports");
+		rebroadcastTargets = resolveRebroadcastTargets();
+		rebroadcastPacket = new DatagramPacket(buf, 0);
 		tcpPorts = new HashSet<Integer>();
 		tcpHosts = new HashSet<InetAddress>();
 
@@ -124,6 +195,13 @@ public class WC3Interface {
 				Main.println(1, "[WC3Interface] Conversion exception while processing gcb_tcp_host; ignoring port/host filters");
 			}
 		}
+
+		validPorts = new int[tcpPorts.size()];
+		int i = 0;
+
+		for(int port : tcpPorts) {
+			validPorts[i++] = port;
+		}
 	}
 
 	public boolean init() {
@@ -148,9 +226,9 @@ public class WC3Interface {
 
 	//returns true if port is in tcpPorts array and tcpPorts array is not empty
 	public boolean isValidPort(int port) {
-		if(tcpPorts.isEmpty()) return true;
+		if(validPorts.length == 0) return true;
 
-		for(int x : tcpPorts) {
+		for(int x : validPorts) {
 			if(x == port) return true;
 		}
 
@@ -162,24 +240,58 @@ public class WC3Interface {
 		
 		if(GarenaEncrypt.unsignedByte(lbuf.get()) == 247 //247 is W3GS header constant
 				&& GarenaEncrypt.unsignedByte(lbuf.get()) == 47 //if packet is W3GS_SEARCHGAME; 47 is packet id
-				&& GCBConfig.configuration.getBoolean("gcb_broadcastfilter_key", true)
-				&& GCBConfig.configuration.getBoolean("gcb_broadcastfilter_cache", true)) {
-			Main.println(11, "[WC3Interface] Sending games to " + address);
+				&& broadcastFilterKey
+				&& broadcastFilterCache) {
 			removeOldGames();
 			
 			//ok, then I guess we should send all cached packets to the client
-			synchronized(games) {
-				Iterator<WC3GameIdentifier> it = games.values().iterator();
-				
-				while(it.hasNext()) {
-					WC3GameIdentifier game = it.next();
-					byte[] data = game.rawPacket;
-					
-					//Warcraft clients always listen on BROADCAST_PORT
-					garena.sendUDPEncap(address, port, game.gameport, BROADCAST_PORT, data, 0, data.length);
-				}
+			//they are already encoded (to BROADCAST_PORT, where Warcraft clients always listen)
+			InetSocketAddress target = new InetSocketAddress(address, port);
+			//a user that got these games already doesn't need them again just because an uptime is newer
+			//this is checked before the replies are looked up, so that ignored searches never lock games
+			int result = searchThrottle.check(target, gamesContentVersion.get(), System.currentTimeMillis());
+
+			if(result != SearchThrottle.ANSWER) {
+				Main.println(11, "[WC3Interface] Not sending games to " + address + ": " +
+						(result == SearchThrottle.DUPLICATE ? "already sent" : "too many searches"));
+				return;
 			}
+
+			Main.println(11, "[WC3Interface] Sending games to " + address);
+			SearchReplies replies = getSearchReplies(garena.user_id);
+
+			for(byte[] datagram : replies.datagrams) {
+				garena.sendUDPEncap(target, ByteBuffer.wrap(datagram));
+			}
+		}
+	}
+
+	//returns the replies for the current games, building them only if the games changed
+	private SearchReplies getSearchReplies(int senderId) {
+		SearchReplies replies = searchReplies.get(senderId);
+		//gamesContentVersion is incremented before gamesVersion, so it's at least as new as version
+		int version = gamesVersion.get();
+		int contentVersion = gamesContentVersion.get();
+
+		if(replies != null && replies.version == version) {
+			return replies;
 		}
+
+		replies = new SearchReplies();
+		replies.version = version;
+		replies.contentVersion = contentVersion;
+
+		synchronized(games) {
+			replies.datagrams = new byte[games.size()][];
+			int i = 0;
+
+			for(WC3GameIdentifier game : games.values()) {
+				replies.datagrams[i++] = game.getDatagram(senderId);
+			}
+		}
+
+		searchReplies.put(senderId, replies);
+		return replies;
 	}
 
 	public void readBroadcast() {
@@ -198,267 +310,202 @@ public class WC3Interface {
 		
 		try {
 			//receive the packet
-			DatagramPacket packet = new DatagramPacket(buf, buf.length);
+			packet.setLength(buf.length);
 			socket.receive(packet);
 
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
-
-			//LAN FIX: rename game so you can differentiate
-			if(GCBConfig.configuration.getBoolean("gcb_lanfix", false)) {
-				data[22] = 119;
+			processBroadcast(packet.getData(), packet.getOffset(), packet.getLength(), packet.getAddress());
+		} catch(IOException ioe) {
+			if(!exitingNicely) {
+				if(Main.DEBUG) {
+					ioe.printStackTrace();
+				}
+	
+				Main.println(1, "[WC3Interface] Error: " + ioe.getLocalizedMessage());
 			}
+		}
+	}
 
-			Main.println(11, "[WC3Interface] Received UDP packet from " + packet.getAddress());
+	//filters, rewrites and caches a packet that was received on the broadcast port, and sends it on
+	//data may be modified; it's only valid until the next call, like the received packet
+	void processBroadcast(byte[] data, int offset, int length, InetAddress address) throws IOException {
+		//LAN FIX: rename game so you can differentiate
+		if(lanfix) {
+			data[22] = 119;
+		}
 
-			//this will be false if we want to filter the packet
-			boolean filterSuccess = true;
-			
-			//with default configuration, we will wait until a user specifically requests a
-			// game through SEARCHGAME packet until sending the GAMEINFO packet
-			//however, with certain configuration this is not possible (either broadcast
-			// filter is disabled completely, or caching is specifically disabled)
-			//we also always broadcast immediately when a new game is hosted!
-			boolean broadcastImmediately = !GCBConfig.configuration.getBoolean("gcb_broadcastfilter", true)
-					|| !GCBConfig.configuration.getBoolean("gcb_broadcastfilter_cache", true);
-
-			//if gcb_broadcastfilter is disabled, filterSuccess will already be set to true
-			//so if filter succeeds, ignore; only if it fails, set filtersuccess to false
-			if(GCBConfig.configuration.getBoolean("gcb_broadcastfilter", true)) {
-				//first check IP address
-				if(tcpHosts.isEmpty() || tcpHosts.contains(packet.getAddress()) || packet.getAddress().isAnyLocalAddress()) {
-					try {
-						ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
-						buf.position(0);
-						buf.order(ByteOrder.LITTLE_ENDIAN);
-						
-						ByteBuffer newPacket = ByteBuffer.allocate(1024);
-						newPacket.order(ByteOrder.LITTLE_ENDIAN);
-
-						//check header constant
-						if(GarenaEncrypt.unsignedByte(buf.get()) == Constants.W3GS_HEADER_CONSTANT) {
-							newPacket.put((byte) Constants.W3GS_HEADER_CONSTANT);
-							
-							//check packet type
-							if(GarenaEncrypt.unsignedByte(buf.get()) == Constants.W3GS_GAMEINFO) {
-								newPacket.put((byte) Constants.W3GS_GAMEINFO);
-								
-								System.arraycopy(buf.array(), buf.position(), newPacket.array(), newPacket.position(), 18);
-								buf.position(buf.position() + 18); //skip to gamename
-								newPacket.position(newPacket.position() + 18);
-								
-								String gamename = GarenaEncrypt.getTerminatedString(buf); //get/skip gamename
-								String gamenameSkeleton = GCBConfig.configuration.getString("gcb_broadcastfilter_gamename");
-								if(gamenameSkeleton != null && !gamenameSkeleton.trim().isEmpty()) {
-									gamenameSkeleton = gamenameSkeleton.replace("%g", gamename);
-									
-									if(gamenameSkeleton.length() >= 31) {
-										gamenameSkeleton = gamenameSkeleton.substring(0, 30);
-									}
-									
-									newPacket.put(gamenameSkeleton.getBytes());
-								} else {
-									newPacket.put(gamename.getBytes());
-								}
-								newPacket.put((byte) 0); //null terminator for gamename
-								
-								newPacket.put(buf.get()); //skip game password
-								newPacket.put(GarenaEncrypt.getTerminatedArray(buf)); //skip statstring
-								newPacket.put((byte) 0); //null terminator for stats string
-								
-								System.arraycopy(buf.array(), buf.position(), newPacket.array(), newPacket.position(), 12);
-								buf.position(buf.position() + 12); //skip to slots available
-								newPacket.position(newPacket.position() + 12);
-								
-								//read slots available for the REFRESHGAME packet
-								int slotsAvailable = buf.getInt();
-								newPacket.putInt(slotsAvailable);
-								
-								newPacket.putInt(buf.getInt()); //skip to port
-								
-								//read port in _little_ endian
-								int port = GarenaEncrypt.unsignedShort(buf.getShort());
-								newPacket.putShort((short) port);
-								
-								//copy any remaining bytes after the port
-								int remainingBytes = buf.limit() - buf.position();
-								
-								if(remainingBytes > 0) {
-									System.arraycopy(buf.array(), buf.position(), newPacket.array(), newPacket.position(), remainingBytes);
-									newPacket.position(newPacket.position() + remainingBytes);
-								}
-								
-								//check port
-								if(!isValidPort(port)) {
-									Main.println(11, "[WC3Interface] Filter fail: invalid port " + port);
-									filterSuccess = false;
-								} else {
-									//if we let Garena users know the LAN entry key, they can spoof joining through LAN directly (without gcb)
-									//if they do this, then they can spoof owner names and other bad stuff, avoiding gcb filter
-									//so, we broadcast a different entry key to Garena so that they can only connect through gcb
-								
-									//note that gcb_broadcastfilter_cache will not work if gcb_broadcastfilter_key is
-									// disabled because we use the same classes to store information
-									// this is the reason for the sanity check in constructor
-								
-									if(GCBConfig.configuration.getBoolean("gcb_broadcastfilter_key", true)) {
-										if(!GCBConfig.configuration.getBoolean("gcb_tcp_buffer", true)) {
-											Main.println(1, "[WC3Interface] Warning: gcb_tcp_buffer must be enabled if gcb_broadcastfilter_key is!");
-										}
-
-										//return to entry key
-										buf.position(12);
-										int ghostHostCounter = buf.getInt();
-										int ghostEntryKey = buf.getInt();
-
-										//check if we have received this game already
-										Integer garenaEntryKey = getGameExists(gamename, port, ghostEntryKey);
-										WC3GameIdentifier game;
-
-										if(garenaEntryKey == null) {
-											//generate a new entry key and put into hashmap
-											garenaEntryKey = random.nextInt();
-											game = new WC3GameIdentifier(gamename, port, ghostEntryKey, ghostHostCounter, garenaEntryKey);
-
-											Main.println(4, "[WC3Interface] Detected new game with name " + gamename +
-													"; generated entry key: " + garenaEntryKey + " (original: " + ghostEntryKey + ")");
-
-											synchronized(games) {
-												games.put(garenaEntryKey, game);
-											}
-
-											synchronized(entryKeys) {
-												entryKeys.put(game, garenaEntryKey);
-											}
-										
-											//always broadcast game immediately if it was just hosted
-											broadcastImmediately = true;
-										} else {
-											game = games.get(garenaEntryKey);
-										}
-										
-										//replace packet's war3version with the configured one, if any
-										if(GCBConfig.configuration.getInt("gcb_broadcastfilter_war3version", 0) != 0) {
-											newPacket.putInt(8, GCBConfig.configuration.getInt("gcb_broadcastfilter_war3version", 0));
-										}
-
-										//replace packet's entry key from GHost with our generated one
-										newPacket.putInt(16, garenaEntryKey);
-										
-										//update the data packet, which gets broadcasted
-										data = new byte[newPacket.position()];
-										System.arraycopy(newPacket.array(), 0, data, 0, newPacket.position());
-										offset = 0;
-										length = data.length;
-										
-										//update the existing WC3GameIdentifier so it doesn't get deleted
-										//we must do this after rewriting the packet (above) or else we will
-										// cache the unrewritten packet!
-										game.update(data, offset, length);
-
-										removeOldGames();
-									
-										//create and broadcast the W3GS_REFRESHGAME packet
-										//this is currently disabled pending investigation into
-										// whether or not it actually works and why it results in
-										// so many packets being sent
-										/*ByteBuffer refreshPacket = ByteBuffer.allocate(16);
-										refreshPacket.order(ByteOrder.LITTLE_ENDIAN);
-										refreshPacket.put((byte) Constants.W3GS_HEADER_CONSTANT);
-										refreshPacket.put((byte) Constants.W3GS_REFRESHGAME);
-										refreshPacket.putShort((short) 16);
-										refreshPacket.putInt(game.hostCounter);
-										refreshPacket.putInt(game.garenaEntryKey);
-										refreshPacket.putInt(slotsAvailable);
-				
-										synchronized(garenaConnections) {
-											Iterator<GarenaInterface> it = garenaConnections.values().iterator();
+		if(Main.isLogging(11)) {
+			Main.println(11, "[WC3Interface] Received UDP packet from " + address);
+		}
+
+		//this will be false if we want to filter the packet
+		boolean filterSuccess = true;
+		
+		//with default configuration, we will wait until a user specifically requests a
+		// game through SEARCHGAME packet until sending the GAMEINFO packet
+		//however, with certain configuration this is not possible (either broadcast
+		// filter is disabled completely, or caching is specifically disabled)
+		//we also always broadcast immediately when a new game is hosted!
+		boolean broadcastImmediately = !broadcastFilter || !broadcastFilterCache;
+		//a new game's GAMEINFO must reach every room, even one whose fan-out is behind
+		boolean droppable = true;
+
+		//if gcb_broadcastfilter is disabled, filterSuccess will already be set to true
+		//so if filter succeeds, ignore; only if it fails, set filtersuccess to false
+		if(broadcastFilter) {
+			//first check IP address
+			if(tcpHosts.isEmpty() || tcpHosts.contains(address) || address.isAnyLocalAddress()) {
+				//rewrite the gamename into rewriter.packet, and read the fields that we need
+				int result = rewriter.rewrite(data, offset, length);
+
+				if(result == GameInfoRewriter.BAD_HEADER) {
+					Main.println(11, "[WC3Interface] Filter fail: invalid header constant");
+					filterSuccess = false;
+				} else if(result == GameInfoRewriter.BAD_TYPE) {
+					Main.println(11, "[WC3Interface] Filter fail: not W3GS_GAMEINFO or bad length");
+					filterSuccess = false;
+				} else if(result == GameInfoRewriter.BAD_FORMAT) {
+					Main.println(11, "[WC3Interface] Filter fail: invalid packet format");
+					filterSuccess = false;
+				} else if(!isValidPort(rewriter.gameport)) {
+					//check port
+					Main.println(11, "[WC3Interface] Filter fail: invalid port " + rewriter.gameport);
+					filterSuccess = false;
+				} else if(broadcastFilterKey) {
+					//if we let Garena users know the LAN entry key, they can spoof joining through LAN directly (without gcb)
+					//if they do this, then they can spoof owner names and other bad stuff, avoiding gcb filter
+					//so, we broadcast a different entry key to Garena so that they can only connect through gcb
 					
-											while(it.hasNext()) {
-												//use BROADCAST_PORT instead of broadcast_port in case the latter is customized with rebroadcast
-												it.next().broadcastUDPEncap(BROADCAST_PORT, BROADCAST_PORT, refreshPacket.array(), 0, 8);
-											}
-										}*/
-									} else {
-										//we must broadcast immediately if we didn't cache the packet
-										broadcastImmediately = true;
-									}
-								}
-							} else {
-								Main.println(11, "[WC3Interface] Filter fail: not W3GS_GAMEINFO or bad length");
-								filterSuccess = false;
-							}
-						} else {
-							Main.println(11, "[WC3Interface] Filter fail: invalid header constant");
-							filterSuccess = false;
+					//note that gcb_broadcastfilter_cache will not work if gcb_broadcastfilter_key is
+					// disabled because we use the same classes to store information
+					// this is the reason for the sanity check in constructor
+
+					//check if we have received this game already
+					//the lookup key is set over the received packet, so looking up a known game doesn't copy anything
+					lookupKey.set(data, rewriter.gamenameOffset, rewriter.gamenameLength, rewriter.gameport, rewriter.ghostEntryKey);
+					WC3GameIdentifier game = getGame(lookupKey);
+					boolean newGame = game == null;
+
+					if(newGame) {
+						//generate a new entry key and put into hashmap
+						game = new WC3GameIdentifier(lookupKey, rewriter.hostCounter, random.nextInt());
+
+						Main.println(4, "[WC3Interface] Detected new game with name " + game.gamename +
+								"; generated entry key: " + game.garenaEntryKey + " (original: " + game.ghostEntryKey + ")");
+
+						synchronized(games) {
+							games.put(game.garenaEntryKey, game);
 						}
-					} catch(BufferUnderflowException bue) {
-						if(Main.DEBUG) {
-							bue.printStackTrace();
+
+						synchronized(gameIndex) {
+							gameIndex.put(game.key, game);
 						}
-						
-						Main.println(11, "[WC3Interface] Filter fail: invalid packet format");
-						filterSuccess = false;
+
+						gamesContentVersion.incrementAndGet();
+						gamesVersion.incrementAndGet();
+					
+						//always broadcast game immediately if it was just hosted
+						broadcastImmediately = true;
+						droppable = false;
 					}
-				} else {
-					Main.println(11, "[WC3Interface] Filter fail: wrong IP address: " + packet.getAddress());
-					filterSuccess = false;
-				}
-			}
+					
+					//replace packet's entry key from GHost with our generated one, and war3version with the configured one, if any
+					rewriter.rewriteKey(game.garenaEntryKey);
+					
+					//update the data packet, which gets broadcasted
+					data = rewriter.packet;
+					offset = 0;
+					length = rewriter.packetLength;
+
+					//if only the slots changed since the last packet of this game, Garena users only need the
+					// 16-byte W3GS_REFRESHGAME; we must check this before the game gets the new packet
+					boolean sendRefresh = false;
+
+					if(broadcastFilterRefresh && !newGame) {
+						refreshCompared.incrementAndGet();
+						sendRefresh = game.onlySlotsChanged(data, offset, length, rewriter.slotsOffset);
+					}
+					
+					//update the existing WC3GameIdentifier so it doesn't get deleted
+					//we must do this after rewriting the packet (above) or else we will
+					// cache the unrewritten packet!
+					//the game copies the packet only if it changed; a newer uptime alone is only taken now and then
+					refreshGame(game, data, offset, length, rewriter.slotsOffset + 4);
+
+					removeOldGames();
 
-			if(filterSuccess) {
-				//if broadcast filter is disabled, we have to forward the packet to client immediately
-				//otherwise, we can cache packet and send to client when we receive SEARCHGAME
-				// from them (we cached packet already in code above)
-				//no matter what, though, we send the W3GS_REFRESHGAME packet (this is done earlier in the method)
-
-				if(broadcastImmediately) {
-					synchronized(garenaConnections) {
-						Iterator<GarenaInterface> it = garenaConnections.values().iterator();
-						
-						while(it.hasNext()) {
-							//use BROADCAST_PORT instead of broadcast_port in case the latter is customized with rebroadcast
-							it.next().broadcastUDPEncap(BROADCAST_PORT, BROADCAST_PORT, data, offset, length);
+					if(sendRefresh) {
+						sendRefreshGame(rewriter.hostCounter, rewriter.slotsTotal, rewriter.slotsAvailable);
+
+						//the refresh replaces the full packet that we would have broadcast
+						if(broadcastImmediately) {
+							refreshBytesSaved.addAndGet(length - refreshPacket.length);
+							broadcastImmediately = false;
 						}
 					}
+				} else {
+					//we must broadcast immediately if we didn't cache the packet
+					broadcastImmediately = true;
 				}
 			} else {
-				//let user know why packet was filtered, in case they didn't want this functionality
-				Main.println(11, "[WC3Interface] Warning: not broadcasting packet to Garena (filtered by gcb_broadcastfilter)");
+				Main.println(11, "[WC3Interface] Filter fail: wrong IP address: " + address);
+				filterSuccess = false;
 			}
+		}
+
+		if(filterSuccess) {
+			//if broadcast filter is disabled, we have to forward the packet to client immediately
+			//otherwise, we can cache packet and send to client when we receive SEARCHGAME
+			// from them (we cached packet already in code above)
+			//with gcb_broadcastfilter_refresh, a game whose slots changed was already sent as W3GS_REFRESHGAME above
+
+			if(broadcastImmediately) {
+				//use BROADCAST_PORT instead of broadcast_port in case the latter is customized with rebroadcast
+				fanout.broadcast(BROADCAST_PORT, BROADCAST_PORT, data, offset, length, droppable);
+			}
+		} else {
+			//let user know why packet was filtered, in case they didn't want this functionality
+			Main.println(11, "[WC3Interface] Warning: not broadcasting packet to Garena (filtered by gcb_broadcastfilter)");
+		}
+
+		//always rebroadcast packets: other gcb instances may be using different TCP ports
+		if(rebroadcastPorts.length > 0) {
+			rebroadcastPacket.setData(data, offset, length);
 
-			//always rebroadcast packets: other gcb instances may be using different TCP ports
 			for(int port : rebroadcastPorts) {
 				Main.println(11, "[WC3Interface] Retransmitting packet to port " + port);
-				String broadcastTarget = GCBConfig.getString("udp_broadcasttarget");
-				
-				if(broadcastTarget == null) {
-					broadcastTarget = "both";
-				}
-				
-				if(broadcastTarget.equals("both") || broadcastTarget.equals("localhost")) {
-					DatagramPacket retransmitPacket = new DatagramPacket(data, offset, length, InetAddress.getLocalHost(), port);
-					socket.send(retransmitPacket);
-					
-					if(broadcastTarget.equals("both")) {
-						retransmitPacket = new DatagramPacket(data, offset, length, InetAddress.getByName("255.255.255.255"), port);
-						socket.send(retransmitPacket);
-					}
-				} else {
-					DatagramPacket retransmitPacket = new DatagramPacket(data, offset, length, InetAddress.getByName(broadcastTarget), port);
-					socket.send(retransmitPacket);
+				rebroadcastPacket.setPort(port);
+
+				for(InetAddress target : rebroadcastTargets) {
+					rebroadcastPacket.setAddress(target);
+					socket.send(rebroadcastPacket);
 				}
 			}
+		}
+	}
+
+	//the addresses that udp_broadcasttarget names: "both" (the default) for localhost and 255.255.255.255,
+	// "localhost", or any other host
+	private InetAddress[] resolveRebroadcastTargets() {
+		String broadcastTarget = GCBConfig.getString("udp_broadcasttarget");
 
+		if(broadcastTarget == null) {
+			broadcastTarget = "both";
+		}
+
+		try {
+			if(broadcastTarget.equals("both")) {
+				return new InetAddress[] {InetAddress.getLocalHost(), InetAddress.getByName("255.255.255.255")};
+			} else if(broadcastTarget.equals("localhost")) {
+				return new InetAddress[] {InetAddress.getLocalHost()};
+			} else {
+				return new InetAddress[] {InetAddress.getByName(broadcastTarget)};
+			}
 		} catch(IOException ioe) {
-			if(!exitingNicely) {
-				if(Main.DEBUG) {
-					ioe.printStackTrace();
-				}
-	
-				Main.println(1, "[WC3Interface] Error: " + ioe.getLocalizedMessage());
+			if(rebroadcastPorts.length > 0) {
+				Main.println(1, "[WC3Interface] Failed to resolve udp_broadcasttarget " + broadcastTarget + "; ignoring rebroadcast: " + ioe.getLocalizedMessage());
 			}
+
+			return new InetAddress[] {};
 		}
 	}
 
@@ -472,55 +519,87 @@ public class WC3Interface {
 		}
 	}
 	
-	private Integer getGameExists(String gamename, int gameport, int ghostEntryKey) {
-		synchronized(entryKeys) {
-			Iterator<WC3GameIdentifier> i = entryKeys.keySet().iterator();
-			
-			while(i.hasNext()) {
-				WC3GameIdentifier game = i.next();
-				
-				if(game.check(gamename, gameport, ghostEntryKey)) {
-					return entryKeys.get(game);
+	private WC3GameIdentifier getGame(WC3GameKey key) {
+		synchronized(gameIndex) {
+			return gameIndex.get(key);
+		}
+	}
+
+	//broadcasts W3GS_REFRESHGAME: the host counter, the players in the game, and the player slots
+	private void sendRefreshGame(int hostCounter, int slotsTotal, int slotsAvailable) {
+		ByteBuffer lbuf = ByteBuffer.wrap(refreshPacket);
+		lbuf.order(ByteOrder.LITTLE_ENDIAN);
+		lbuf.put((byte) Constants.W3GS_HEADER_CONSTANT);
+		lbuf.put((byte) Constants.W3GS_REFRESHGAME);
+		lbuf.putShort((short) refreshPacket.length);
+		lbuf.putInt(hostCounter);
+		lbuf.putInt(slotsTotal - slotsAvailable);
+		lbuf.putInt(slotsTotal);
+
+		//fanout copies the packet, so refreshPacket can be used again right away
+		//use BROADCAST_PORT instead of broadcast_port in case the latter is customized with rebroadcast
+		//GHost++ sends the game again, so a refresh may be dropped
+		fanout.broadcast(BROADCAST_PORT, BROADCAST_PORT, refreshPacket, 0, refreshPacket.length, true);
+		refreshSent.incrementAndGet();
+	}
+
+	//stores the latest packet of the game and moves it to the end of the expiry order
+	//uptimeOffset is where the GAMEINFO uptime is in data; it's ignored unless the cached one is too old
+	private void refreshGame(WC3GameIdentifier game, byte[] data, int offset, int length, int uptimeOffset) {
+		synchronized(gameIndex) {
+			int result = game.update(data, offset, length, uptimeOffset);
+
+			//don't add it back if it expired since we looked it up
+			if(gameIndex.remove(game.key) != null) {
+				gameIndex.put(game.key, game);
+
+				if(result == WC3GameIdentifier.CHANGED) {
+					gamesContentVersion.incrementAndGet();
+				}
+
+				if(result != WC3GameIdentifier.UNCHANGED) {
+					gamesVersion.incrementAndGet();
 				}
 			}
 		}
-
-		return null;
 	}
 
 	private void removeOldGames() {
-		synchronized(entryKeys) {
-			Object[] game_identifiers = entryKeys.keySet().toArray();
+		long expiry = System.currentTimeMillis() - 1000 * 15;
 
-			for(Object o : game_identifiers) {
-				WC3GameIdentifier game = (WC3GameIdentifier) o;
+		synchronized(gameIndex) {
+			Iterator<WC3GameIdentifier> it = gameIndex.values().iterator();
+
+			while(it.hasNext()) {
+				WC3GameIdentifier game = it.next();
 				
-				if(System.currentTimeMillis() - game.timeReceived > 1000 * 15) {
-					entryKeys.remove(game);
-					
-					//broadcast a UDP packet (W3GS_DECREATEGAME) to destroy the game in the LAN gamelist
-					ByteBuffer decreatePacket = ByteBuffer.allocate(8);
-					decreatePacket.order(ByteOrder.LITTLE_ENDIAN);
-					decreatePacket.put((byte) Constants.W3GS_HEADER_CONSTANT);
-					decreatePacket.put((byte) Constants.W3GS_DECREATEGAME);
-					decreatePacket.putShort((short) 8);
-					decreatePacket.putInt(game.hostCounter);
-					
-					synchronized(garenaConnections) {
-						Iterator<GarenaInterface> it = garenaConnections.values().iterator();
-						
-						while(it.hasNext()) {
-							//use BROADCAST_PORT instead of broadcast_port in case the latter is customized with rebroadcast
-							it.next().broadcastUDPEncap(BROADCAST_PORT, BROADCAST_PORT, decreatePacket.array(), 0, 8);
-						}
-					}
-					
-					synchronized(games) {
-						games.remove(game.garenaEntryKey);
-					}
+				//games are in the order that they were last received, so the rest are newer
+				if(game.timeReceived >= expiry) {
+					break;
+				}
 
-					Main.println(4, "[WC3Interface] Removed old game with name: " + game.gamename);
+				it.remove();
+				
+				//broadcast a UDP packet (W3GS_DECREATEGAME) to destroy the game in the LAN gamelist
+				ByteBuffer decreatePacket = ByteBuffer.allocate(8);
+				decreatePacket.order(ByteOrder.LITTLE_ENDIAN);
+				decreatePacket.put((byte) Constants.W3GS_HEADER_CONSTANT);
+				decreatePacket.put((byte) Constants.W3GS_DECREATEGAME);
+				decreatePacket.putShort((short) 8);
+				decreatePacket.putInt(game.hostCounter);
+				
+				//use BROADCAST_PORT instead of broadcast_port in case the latter is customized with rebroadcast
+				//this is only sent once, so it is never dropped
+				fanout.broadcast(BROADCAST_PORT, BROADCAST_PORT, decreatePacket.array(), 0, 8, false);
+				
+				synchronized(games) {
+					games.remove(game.garenaEntryKey);
 				}
+
+				gamesContentVersion.incrementAndGet();
+				gamesVersion.incrementAndGet();
+
+				Main.println(4, "[WC3Interface] Removed old game with name: " + game.gamename);
 			}
 		}
 	}